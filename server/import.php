@@ -0,0 +1,161 @@
+<?php
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2016 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+/*
+ * Bulk imports usage statistics exported by clients which cannot reach the
+ * server (see imagej.usage.export), from newline-delimited JSON files, as
+ * compressed by gzip or not.
+ *
+ * Run from the command line, naming files or directories of them:
+ *
+ *   php import.php /path/to/exports/*.ndjson.gz
+ *
+ * Rather than replaying each upload as a request of its own, many uploads
+ * are stored per transaction. Each upload keeps its batch ID, so uploads
+ * (and whole files) imported more than once are stored only once; and each
+ * is stored as of the time it was exported, not imported.
+ */
+
+require(dirname(__FILE__) . '/stats.php');
+
+/* Number of uploads stored per transaction. */
+define('UPLOADS_PER_TRANSACTION', 1000);
+
+/* Default number of months of raw data kept, if not configured. */
+define('DEFAULT_RETENTION_MONTHS', 24);
+
+/*
+ * Lists the files to import from the given paths, expanding directories to
+ * the export files within them.
+ */
+function importFiles($paths) {
+	$files = array();
+	foreach ($paths as $path) {
+		if (is_dir($path)) {
+			$found = glob("$path/*.ndjson*");
+			sort($found);
+			$files = array_merge($files, $found);
+		}
+		else $files[] = $path;
+	}
+	return $files;
+}
+
+/*
+ * Gets the time at which to store an exported upload: when it was exported,
+ * but within the months still kept in raw form, and not in the future.
+ */
+function importTimestamp($json, $earliest, $now) {
+	$exported = optionalValue($json, 'exported');
+	$time = is_null($exported) ? $now : min(max((int) $exported, $earliest), $now);
+	return date('Y-m-d H:i:s', $time);
+}
+
+/*
+ * Imports the uploads of one file, committing every so many uploads.
+ * Returns the numbers of uploads stored, duplicate and malformed, and
+ * whether the file could not be read (wholly).
+ */
+function importFile($db, $file, $earliest, &$pending) {
+	$counts = array(0, 0, 0, 0);
+	// NB: gzopen reads uncompressed files as they are.
+	$in = gzopen($file, 'rb');
+	if (!$in) {
+		echo "Cannot open $file\n";
+		$counts[3] = 1;
+		return $counts;
+	}
+	$now = time();
+	while (($line = gzgets($in)) !== false) {
+		$line = trim($line);
+		if (strlen($line) == 0) continue;
+		$json = json_decode($line, true);
+		$version = is_array($json) ? value($json, 'usage_version') : null;
+		if (!$version || $version < 2.0) {
+			$counts[2]++;
+			continue;
+		}
+		if ($pending == 0) $db->begin_transaction();
+		$timestamp = importTimestamp($json, $earliest, $now);
+		$stored = storePayload($db, $json, $timestamp);
+		if (is_null($stored)) {
+			die("Cannot store statistics: $db->error\n" .
+				"Run maintain.php to migrate the tables, then import again.\n");
+		}
+		if ($stored) $counts[0]++;
+		else $counts[1]++;
+		if (++$pending >= UPLOADS_PER_TRANSACTION) {
+			$db->commit();
+			$pending = 0;
+		}
+	}
+	// NB: gzgets also stops at corrupt data, such as a truncated file.
+	if (!gzeof($in)) {
+		echo "Cannot read $file to its end (corrupt or truncated)\n";
+		$counts[3] = 1;
+	}
+	gzclose($in);
+	return $counts;
+}
+
+// -- Main function --
+
+function import($argv) {
+	if (php_sapi_name() != 'cli') die("Command line use only\n");
+	if (count($argv) < 2) die("Usage: php import.php file-or-directory...\n");
+
+	$db = connectToDB();
+	if (!$db) die("Cannot connect to database\n");
+
+	require('/var/www/vhosts/usage.imagej.net/conf/config.php');
+	if (!isset($retention_months)) $retention_months = DEFAULT_RETENTION_MONTHS;
+	// NB: Older partitions have been compacted and dropped by maintain.php.
+	$earliest = strtotime(date('Y-m-01') . " -$retention_months month");
+
+	$pending = 0;
+	$totals = array(0, 0, 0, 0);
+	foreach (importFiles(array_slice($argv, 1)) as $file) {
+		$counts = importFile($db, $file, $earliest, $pending);
+		echo "$file: $counts[0] stored, $counts[1] duplicate, " .
+			"$counts[2] malformed\n";
+		for ($i = 0; $i < 4; $i++) $totals[$i] += $counts[$i];
+	}
+	if ($pending > 0) $db->commit();
+	$db->close();
+
+	echo "Total: $totals[0] stored, $totals[1] duplicate, " .
+		"$totals[2] malformed, $totals[3] unreadable files\n";
+	if ($totals[3] > 0) exit(1);
+}
+
+import($argv);
+?>
@@ -0,0 +1,232 @@
+<?php
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2016 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+/*
+ * Maintains the monthly partitions of the raw events and stats tables.
+ *
+ * Run from the command line (e.g., monthly via cron):
+ *
+ *   php maintain.php
+ *
+ * Partitions for upcoming months are created ahead of time. Partitions older
+ * than the retention window ($retention_months in config.php, 24 by default)
+ * are compacted into the rollups table and then dropped as a whole, rather
+ * than purged with row-by-row DELETEs.
+ *
+ * IDs of uploaded batches are only kept long enough to discard retries.
+ *
+ * Tables created by earlier versions are migrated in place, so run this once
+ * when deploying a new stats.php; until then, stats.php cannot store uploads
+ * and asks clients to send them again later.
+ */
+
+require(dirname(__FILE__) . '/stats.php');
+
+/* Number of future months for which partitions are created in advance. */
+define('MONTHS_AHEAD', 2);
+
+/* Default number of months of raw data to keep, if not configured. */
+define('DEFAULT_RETENTION_MONTHS', 24);
+
+/* Number of days for which uploaded batch IDs are remembered. */
+define('BATCH_RETENTION_DAYS', 30);
+
+/* Splits tables created before partitioning into monthly partitions. */
+function migrateTables($db) {
+	foreach (array('events', 'stats') as $table) {
+		if (count(partitions($db, $table)) > 0) continue;
+		echo "Partitioning table $table\n";
+		if ($table == 'stats') {
+			// NB: The stats table did not record a timestamp of its own.
+			query($db, "ALTER TABLE stats ADD COLUMN " .
+				"timestamp DATETIME NOT NULL AFTER stat_id");
+			query($db, "UPDATE stats s JOIN events e ON e.event_id = s.event_id " .
+				"SET s.timestamp = e.timestamp");
+		}
+		else {
+			query($db, "ALTER TABLE events MODIFY timestamp DATETIME NOT NULL");
+		}
+		$id_column = $table == 'stats' ? 'stat_id' : 'event_id';
+		query($db, "ALTER TABLE $table DROP PRIMARY KEY, " .
+			"ADD PRIMARY KEY($id_column, timestamp)");
+
+		$first = selectValue($db, "SELECT MIN(timestamp) FROM $table");
+		$month = date('Y-m-01', $first ? strtotime($first) : time());
+		$definitions = array();
+		while (strtotime($month) <= time()) {
+			$definitions[] = partitionDefinition($month);
+			$month = date('Y-m-01', strtotime("$month +1 month"));
+		}
+		$definitions[] = "PARTITION pmax VALUES LESS THAN MAXVALUE";
+		query($db, "ALTER TABLE $table PARTITION BY RANGE (TO_DAYS(timestamp)) (" .
+			implode(', ', $definitions) . ")");
+	}
+}
+
+/* Adds columns introduced since the tables were created. */
+function migrateColumns($db) {
+	addColumn($db, 'stats', 'estimated', 'BOOL');
+	addColumn($db, 'stats', 'error', 'INT');
+	addColumn($db, 'stats', 'time_p50', 'INT');
+	addColumn($db, 'stats', 'time_p99', 'INT');
+	addColumn($db, 'stats', 'time_max', 'INT');
+	addColumn($db, 'stats', 'measured', 'INT');
+	addColumn($db, 'stats', 'cpu_time', 'BIGINT');
+	addColumn($db, 'stats', 'allocated', 'BIGINT');
+	addColumn($db, 'stats', 'canceled', 'INT');
+	addColumn($db, 'stats', 'errored', 'INT');
+	addColumn($db, 'events', 'session', 'CHAR(36), ADD INDEX(session)');
+}
+
+/* Adds a column to a table, if it does not already exist. */
+function addColumn($db, $table, $column, $definition) {
+	$exists = selectValue($db, "SELECT COUNT(*) FROM " .
+		"INFORMATION_SCHEMA.COLUMNS WHERE TABLE_SCHEMA = DATABASE() " .
+		"AND TABLE_NAME = '$table' AND COLUMN_NAME = '$column'");
+	if ($exists) return;
+	echo "Adding column $column to $table\n";
+	query($db, "ALTER TABLE $table ADD COLUMN $column $definition");
+}
+
+/* Ensures partitions exist through the given number of months ahead. */
+function addPartitions($db, $table, $months_ahead) {
+	$months = partitions($db, $table);
+	$last = end($months);
+	$month = date('Y-m-01', strtotime("$last +1 month"));
+	$until = strtotime(date('Y-m-01') . " +$months_ahead month");
+	while (strtotime($month) <= $until) {
+		echo "Adding partition " . partitionName($month) . " to $table\n";
+		query($db, "ALTER TABLE $table REORGANIZE PARTITION pmax INTO (" .
+			partitionDefinition($month) . ", " .
+			"PARTITION pmax VALUES LESS THAN MAXVALUE)");
+		$month = date('Y-m-01', strtotime("$month +1 month"));
+	}
+}
+
+/*
+ * Compacts each monthly partition of stats older than the retention window
+ * into the rollups table, then drops it, along with the partitions of events
+ * no longer referred to.
+ */
+function compactPartitions($db, $retention_months) {
+	$cutoff = strtotime(date('Y-m-01') . " -$retention_months month");
+	foreach (partitions($db, 'stats') as $month) {
+		if (strtotime($month) >= $cutoff) break;
+		$partition = partitionName($month);
+		echo "Compacting partition $partition\n";
+
+		// NB: Rerunning after an interrupted compaction recomputes the same
+		// rollup rows, so the rollup overwrites rather than accumulates.
+		query($db, "INSERT INTO rollups " .
+			"(month, object_id, count, users, events) " .
+			"SELECT '$month', s.object_id, SUM(s.count), " .
+			"COUNT(DISTINCT e.user_id), COUNT(DISTINCT s.event_id) " .
+			"FROM stats PARTITION ($partition) s " .
+			"LEFT JOIN events e ON e.event_id = s.event_id " .
+			"GROUP BY s.object_id " .
+			"ON DUPLICATE KEY UPDATE count = VALUES(count), " .
+			"users = VALUES(users), events = VALUES(events)");
+		query($db, "ALTER TABLE stats DROP PARTITION $partition");
+	}
+
+	// NB: The later batches of an upload session may be stored in the month
+	// after its event, so events are kept a month longer than the stats
+	// which refer to them.
+	$cutoff = strtotime(date('Y-m-01', $cutoff) . " -1 month");
+	foreach (partitions($db, 'events') as $month) {
+		if (strtotime($month) >= $cutoff) break;
+		$partition = partitionName($month);
+		echo "Dropping partition $partition of events\n";
+		query($db, "ALTER TABLE events DROP PARTITION $partition");
+	}
+}
+
+/* Forgets uploaded batches older than the given number of days. */
+function pruneBatches($db, $retention_days) {
+	query($db, "DELETE FROM batches " .
+		"WHERE timestamp < NOW() - INTERVAL $retention_days DAY");
+}
+
+/* Gets the months of a table's monthly partitions, in ascending order. */
+function partitions($db, $table) {
+	$result = query($db, "SELECT PARTITION_NAME FROM " .
+		"INFORMATION_SCHEMA.PARTITIONS WHERE TABLE_SCHEMA = DATABASE() " .
+		"AND TABLE_NAME = '$table' AND PARTITION_NAME LIKE 'p______' " .
+		"ORDER BY PARTITION_ORDINAL_POSITION");
+	$months = array();
+	while ($row = $result->fetch_row()) {
+		$name = $row[0];
+		$months[] = substr($name, 1, 4) . '-' . substr($name, 5, 2) . '-01';
+	}
+	$result->free();
+	return $months;
+}
+
+/* Gets the first column of the first row of a query result. */
+function selectValue($db, $sql) {
+	$result = query($db, $sql);
+	$row = $result->fetch_row();
+	$result->free();
+	return $row ? $row[0] : null;
+}
+
+/* Executes a query, aborting on failure. */
+function query($db, $sql) {
+	$result = $db->query($sql);
+	if (!$result) die("Error executing query: $db->error\n$sql\n");
+	return $result;
+}
+
+// -- Main function --
+
+function maintain() {
+	if (php_sapi_name() != 'cli') die("Command line use only\n");
+
+	$db = connectToDB();
+	if (!$db) die("Cannot connect to database\n");
+
+	require('/var/www/vhosts/usage.imagej.net/conf/config.php');
+	if (!isset($retention_months)) $retention_months = DEFAULT_RETENTION_MONTHS;
+
+	migrateTables($db);
+	migrateColumns($db);
+	foreach (array('events', 'stats') as $table) {
+		addPartitions($db, $table, MONTHS_AHEAD);
+	}
+	compactPartitions($db, $retention_months);
+	pruneBatches($db, BATCH_RETENTION_DAYS);
+
+	$db->close();
+}
+
+maintain();
+?>
@@ -34,7 +34,14 @@
 function processStats($data) {
 	header('Content-Type: application/json');
 
-	$output = array();
+	$output = pacing();
+
+	// NB: When shedding load, defer uploads before doing any work on them.
+	if (array_key_exists('retry_after', $output)) {
+		$output['message'] = 'Statistics deferred';
+		print json_encode($output);
+		return;
+	}
 
 	if (strlen($data) == 0) {
 		$output['message'] = 'No statistics to process';
@@ -53,12 +60,72 @@ function processStats($data) {
 
 	$db = connectToDB();
 	if (!$db) {
+		// NB: Ask the client to keep the statistics and send them again later.
 		$output['message'] = 'Cannot connect to database';
+		$output['retry_after'] = 15 * 60;
 		print json_encode($output);
 		return;
 	}
 	$timestamp = date('Y-m-d H:i:s');
 
+	// NB: Claim the batch and store its statistics atomically, so that a
+	// retried batch is either wholly stored already, or not at all.
+	$db->begin_transaction();
+	$stored = storePayload($db, $json, $timestamp);
+	if (is_null($stored)) {
+		// NB: E.g., the tables have yet to be migrated by maintain.php.
+		$db->rollback();
+		$db->close();
+		$output['message'] = 'Cannot store statistics';
+		$output['retry_after'] = 15 * 60;
+		print json_encode($output);
+		return;
+	}
+	if (!$stored) {
+		$db->rollback();
+		$db->close();
+		$output['message'] = 'Duplicate statistics ignored';
+		$output['duplicate'] = true;
+		print json_encode($output);
+		return;
+	}
+
+	$db->commit();
+	$db->close();
+
+	$output['message'] = 'Statistics processed';
+	print json_encode($output);
+}
+
+/*
+ * Claims the batch of a decoded payload and stores its uploads, returning
+ * false if the batch was stored already, or null if storing failed. The
+ * caller brackets this in a transaction, possibly along with other payloads,
+ * which it rolls back unless true is returned.
+ */
+function storePayload($db, $json, $timestamp) {
+	$batch_id = optionalValue($json, 'batch_id');
+	if ($batch_id && !claimBatch($db, $batch_id,
+		optionalValue($json, 'content_hash'), $timestamp))
+	{
+		return false;
+	}
+
+	// NB: A relay forwards the uploads of many users in one payload, each of
+	// which is stored as an event of its own.
+	$uploads = array_key_exists('uploads', $json) ? $json['uploads'] :
+		array($json);
+	foreach ($uploads as &$upload) {
+		if (!storeUpload($db, $upload, $timestamp)) return null;
+	}
+	return true;
+}
+
+/*
+ * Stores one user's upload, or one batch of it, as an event, returning
+ * false if any of its rows could not be inserted.
+ */
+function storeUpload($db, $json, $timestamp) {
 	$user_id = lookupUser($db, $json);
 	$country_id = lookupCountry($db, $json);
 	$language_id = lookupLanguage($db, $json);
@@ -66,20 +133,42 @@ function processStats($data) {
 	$os_id = lookupOS($db, $json);
 	$java_id = lookupJava($db, $json);
 
-	$event_id = insertEvent($db, $timestamp, $user_id,
-		$country_id, $language_id, $timezone_id, $os_id, $java_id);
+	// NB: Large uploads arrive in several batches sharing one session ID,
+	// which are reassembled into a single event.
+	$session = optionalValue($json, 'session');
+	$event_id = $session ? lookupSession($db, $session, $timestamp) : null;
+	if (!$event_id) {
+		$event_id = insertEvent($db, $timestamp, $user_id,
+			$country_id, $language_id, $timezone_id, $os_id, $java_id, $session);
+		if (!$event_id) return false;
+	}
 
 	foreach ($json['sites'] as &$site) {
 		$site_id = lookupSite($db, $site);
 		foreach ($site['stats'] as &$stat) {
-			insertStat($db, $event_id, $stat, $site_id);
+			if (!insertStat($db, $event_id, $timestamp, $stat, $site_id)) {
+				return false;
+			}
 		}
 	}
+	return true;
+}
 
-	$db->close();
-
-	$output['message'] = 'Statistics processed';
-	print json_encode($output);
+/*
+ * Gets the upload pacing directions to send to clients, as configured:
+ *
+ * - $next_upload: seconds until clients should next upload.
+ * - $retry_after: seconds after which clients should resend; while set,
+ *   all uploads are deferred (e.g., during maintenance).
+ * - $max_batch: the most statistics accepted per batch.
+ */
+function pacing() {
+	require('/var/www/vhosts/usage.imagej.net/conf/config.php');
+	$pacing = array();
+	if (isset($next_upload)) $pacing['next_upload'] = $next_upload;
+	if (isset($retry_after)) $pacing['retry_after'] = $retry_after;
+	if (isset($max_batch)) $pacing['max_batch'] = $max_batch;
+	return $pacing;
 }
 
 // -- Database functions --
@@ -123,13 +212,35 @@ function connectToDB() {
 		"name TINYTEXT, label TINYTEXT, description TEXT");
 
 	// upload events (one row each time ImageJ uploads a batch of statistics)
-	createTable($db, "events", "event_id",
-		"timestamp DATETIME, user_id INT, country_id INT, " .
-		"language_id INT, timezone_id INT, os_id INT, java_id INT");
+	createPartitionedTable($db, "events", "event_id",
+		"user_id INT, country_id INT, " .
+		"language_id INT, timezone_id INT, os_id INT, java_id INT, " .
+		"session CHAR(36), INDEX(session)");
 
 	// usage counts (per object, per event)
-	createTable($db, "stats", "stat_id",
-		"event_id INT, object_id INT, count INT");
+	createPartitionedTable($db, "stats", "stat_id",
+		"event_id INT, object_id INT, count INT, estimated BOOL, error INT, " .
+		"time_p50 INT, time_p99 INT, time_max INT, " .
+		"measured INT, cpu_time BIGINT, allocated BIGINT, " .
+		"canceled INT, errored INT");
+
+	// uploaded batches, by client-generated ID, to discard duplicates
+	// NB: Not partitioned, since unique keys of a partitioned table must
+	// include its timestamp, which differs between retries of a batch.
+	$sql = "CREATE TABLE IF NOT EXISTS batches (" .
+		"batch_id CHAR(36) NOT NULL, content_hash CHAR(40), " .
+		"timestamp DATETIME NOT NULL, " .
+		"PRIMARY KEY(batch_id), INDEX(timestamp))";
+	$result = $db->query($sql);
+	if (!$result) die("Error creating table: $db->error");
+
+	// monthly usage counts (per object), compacted from expired partitions
+	$sql = "CREATE TABLE IF NOT EXISTS rollups (" .
+		"month DATE NOT NULL, object_id INT NOT NULL, " .
+		"count BIGINT, users INT, events INT, " .
+		"PRIMARY KEY(month, object_id))";
+	$result = $db->query($sql);
+	if (!$result) die("Error creating table: $db->error");
 
 	return $db;
 }
@@ -143,6 +254,35 @@ function createTable($db, $table_name, $id_column, $columns) {
 	if (!$result) die("Error creating table: $db->error");
 }
 
+/*
+ * Creates a table partitioned by month of its timestamp column, if it does
+ * not already exist. Rows from months without a partition of their own land
+ * in the pmax partition until maintain.php splits them out.
+ */
+function createPartitionedTable($db, $table_name, $id_column, $columns) {
+	$sql = "CREATE TABLE IF NOT EXISTS $table_name (" .
+		"$id_column INT NOT NULL AUTO_INCREMENT, " .
+		"timestamp DATETIME NOT NULL, $columns, " .
+		"PRIMARY KEY($id_column, timestamp)) " .
+		"PARTITION BY RANGE (TO_DAYS(timestamp)) (" .
+		partitionDefinition(date('Y-m-01')) . ", " .
+		"PARTITION pmax VALUES LESS THAN MAXVALUE)";
+	$result = $db->query($sql);
+	if (!$result) die("Error creating table: $db->error");
+}
+
+/* Gets the name of the partition holding the given month. */
+function partitionName($month) {
+	return 'p' . date('Ym', strtotime($month));
+}
+
+/* Gets the partition definition clause for the given month. */
+function partitionDefinition($month) {
+	$next = date('Y-m-01', strtotime("$month +1 month"));
+	return "PARTITION " . partitionName($month) .
+		" VALUES LESS THAN (TO_DAYS('$next'))";
+}
+
 /* Gets the user_id of a user, creating it if needed. */
 function lookupUser($db, $json) {
 	$user = value($json, 'user');
@@ -284,26 +424,74 @@ function lookupSite($db, $site) {
 	return insert($db, $statement);
 }
 
+/*
+ * Records that a batch has been uploaded, returning false if it already was.
+ * A concurrent retry of the same batch waits here until the first commits.
+ */
+function claimBatch($db, $batch_id, $content_hash, $timestamp) {
+	$statement = $db->prepare("INSERT IGNORE INTO batches " .
+		"(batch_id, content_hash, timestamp) VALUES (?, ?, ?)");
+	$statement->bind_param('sss', $batch_id, $content_hash, $timestamp);
+	$statement->execute();
+	$claimed = $statement->affected_rows > 0;
+	$statement->close();
+	return $claimed;
+}
+
+/*
+ * Gets the event_id of an upload session stored around the given time, or
+ * null if none.
+ */
+function lookupSession($db, $session, $timestamp) {
+	// NB: Batches of a session are sent back to back, so only the partitions
+	// around the batch's time need to be searched. This is not necessarily
+	// now: imported batches are stored as of the time they were exported.
+	$time = strtotime($timestamp);
+	$since = date('Y-m-d H:i:s', strtotime('-1 day', $time));
+	$until = date('Y-m-d H:i:s', strtotime('+1 day', $time));
+
+	$statement = $db->prepare("SELECT event_id FROM events " .
+		"WHERE session = ? AND timestamp BETWEEN ? AND ?");
+	if (!$statement) return null;
+	$statement->bind_param('sss', $session, $since, $until);
+	return select($statement, 'event_id');
+}
+
 /* Inserts a row into the events table, returning the new event ID. */
 function insertEvent($db, $timestamp, $user_id,
-	$country_id, $language_id, $timezone_id, $os_id, $java_id)
+	$country_id, $language_id, $timezone_id, $os_id, $java_id, $session)
 {
 	$statement = $db->prepare("INSERT INTO events " .
 		"(timestamp, user_id, " .
-		"country_id, language_id, timezone_id, os_id, java_id) " .
+		"country_id, language_id, timezone_id, os_id, java_id, session) " .
 		"VALUES (?, ?, ?, " . // timestamp, user_id
-		"?, ?, ?, ?)"); // country_id, language_id, timezone_id, os_id, java_id
-	$statement->bind_param('siiiiii',
+		"?, ?, ?, ?, " . // country_id, language_id, timezone_id, os_id, java_id
+		"?)"); // session
+	// NB: Fails if the table predates a column, until migrated by maintain.php.
+	if (!$statement) return null;
+	$statement->bind_param('siiiiiis',
 		$timestamp, $user_id,
-		$country_id, $language_id, $timezone_id, $os_id, $java_id);
+		$country_id, $language_id, $timezone_id, $os_id, $java_id, $session);
 	return insert($db, $statement);
 }
 
 /* Inserts a row into the stats table, returning the new stat ID. */
-function insertStat($db, $event_id, $stat, $site_id) {
+function insertStat($db, $event_id, $timestamp, $stat, $site_id) {
 	$identifier = value($stat, 'id');
 	$object_id = lookupObject($db, $stat, $site_id);
 	$count = value($stat, 'count');
+	$estimated = optionalValue($stat, 'estimated') ? 1 : 0;
+	$error = optionalValue($stat, 'error');
+	$time_p50 = optionalValue($stat, 'time_p50');
+	$time_p99 = optionalValue($stat, 'time_p99');
+	$time_max = optionalValue($stat, 'time_max');
+	$measured = optionalValue($stat, 'measured');
+	$cpu_time = optionalValue($stat, 'cpu_time');
+	$allocated = optionalValue($stat, 'allocated');
+	// NB: Outcome counts are ordered: executed, canceled, errored.
+	$outcomes = optionalValue($stat, 'outcomes');
+	$canceled = $outcomes ? optionalValue($outcomes, 1) : null;
+	$errored = $outcomes ? optionalValue($outcomes, 2) : null;
 
 	// NB: Purge sensitive details uploaded from early versions of imagej-usage.
 	// While these versions were only available for a couple of hours,
@@ -313,8 +501,14 @@ function insertStat($db, $event_id, $stat, $site_id) {
 	$identifier = preg_replace('/^(legacy:[^?]*)\?.*\/.*$/', '$1', $identifier);
 
 	$statement = $db->prepare("INSERT INTO stats " .
-		"(event_id, object_id, count) VALUES (?, ?, ?)");
-	$statement->bind_param('iii', $event_id, $object_id, $count);
+		"(timestamp, event_id, object_id, count, estimated, error, " .
+		"time_p50, time_p99, time_max, measured, cpu_time, allocated, " .
+		"canceled, errored) " .
+		"VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+	if (!$statement) return null;
+	$statement->bind_param('siiiiiiiiiiiii', $timestamp, $event_id,
+		$object_id, $count, $estimated, $error, $time_p50, $time_p99, $time_max,
+		$measured, $cpu_time, $allocated, $canceled, $errored);
 	return insert($db, $statement);
 }
 
@@ -368,6 +562,11 @@ function value($array, $key) {
 	return $array && array_key_exists($key, $array) ? $array[$key] : '';
 }
 
+/* Gets the value of the given key in the specified array, or null if none. */
+function optionalValue($array, $key) {
+	return $array && array_key_exists($key, $array) ? $array[$key] : null;
+}
+
 // -- Main function --
 
 function main() {
@@ -375,5 +574,7 @@ function main() {
 	processStats($data);
 }
 
-main();
+// NB: Only handle requests when invoked directly, not when included by the
+// maintenance scripts, which reuse the database functions above.
+if (count(get_included_files()) == 1) main();
 ?>
@@ -0,0 +1,271 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2016 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.usage;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.service.AbstractService;
+import org.scijava.service.Service;
+
+/**
+ * Default service for tracking the health and cost of the usage statistics
+ * subsystem, which also registers itself as a JMX {@link UsageMetricsMBean}.
+ */
+@Plugin(type = Service.class)
+public class DefaultUsageMetricsService extends AbstractService implements
+	UsageMetricsService, UsageMetricsMBean
+{
+
+	/** JMX domain under which the metrics are registered. */
+	public static final String JMX_DOMAIN = "net.imagej.usage";
+
+	/** Largest tracked JSON build time or upload latency: ten minutes. */
+	private static final long MAX_NANOS = 10L * 60 * 1000 * 1000 * 1000;
+
+	/** Largest tracked payload size: 1 GiB. */
+	private static final long MAX_BYTES = 1L << 30;
+
+	/** Minimum interval over which the increment rate is computed. */
+	private static final long RATE_INTERVAL = 1000L * 1000 * 1000;
+
+	@Parameter
+	private UsageService usageService;
+
+	@Parameter
+	private LogService log;
+
+	private final LogHistogram buildTimes = new LogHistogram(MAX_NANOS);
+	private final LogHistogram payloadSizes = new LogHistogram(MAX_BYTES);
+	private final LogHistogram uploadLatencies = new LogHistogram(MAX_NANOS);
+
+	private final AtomicLong uploads = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private volatile long lastUploadTime = -1;
+	private volatile int deferred;
+
+	private long rateTime;
+	private long rateCount;
+	private double rate;
+
+	private ObjectName objectName;
+
+	// -- UsageMetricsService methods --
+
+	@Override
+	public long getIncrementCount() {
+		return usageService.getIncrementCount();
+	}
+
+	@Override
+	public synchronized double getIncrementRate() {
+		final long now = System.nanoTime();
+		final long elapsed = now - rateTime;
+		if (elapsed >= RATE_INTERVAL) {
+			final long count = getIncrementCount();
+			rate = (count - rateCount) * 1e9 / elapsed;
+			rateTime = now;
+			rateCount = count;
+		}
+		return rate;
+	}
+
+	@Override
+	public int getTableSize() {
+		return usageService.getStats().size();
+	}
+
+	@Override
+	public long getRetainedBytes() {
+		long bytes = 0;
+		for (final UsageStats usage : usageService.getStats().values()) {
+			bytes += usage.estimateBytes();
+		}
+		return bytes;
+	}
+
+	@Override
+	public long getMillisSinceLastUpload() {
+		final long last = lastUploadTime;
+		return last < 0 ? -1 : System.currentTimeMillis() - last;
+	}
+
+	@Override
+	public long getUploadCount() {
+		return uploads.get();
+	}
+
+	@Override
+	public long getFailureCount() {
+		return failures.get();
+	}
+
+	@Override
+	public int getDeferredCount() {
+		return deferred;
+	}
+
+	@Override
+	public LogHistogram getBuildTimes() {
+		return buildTimes;
+	}
+
+	@Override
+	public LogHistogram getPayloadSizes() {
+		return payloadSizes;
+	}
+
+	@Override
+	public LogHistogram getUploadLatencies() {
+		return uploadLatencies;
+	}
+
+	@Override
+	public void recordBuild(final long nanos) {
+		buildTimes.record(nanos);
+	}
+
+	@Override
+	public void recordUpload(final long bytes, final long nanos,
+		final boolean success)
+	{
+		payloadSizes.record(bytes);
+		uploadLatencies.record(nanos);
+		if (success) {
+			uploads.incrementAndGet();
+			lastUploadTime = System.currentTimeMillis();
+		}
+		else failures.incrementAndGet();
+	}
+
+	@Override
+	public void recordDeferred(final int batches) {
+		deferred = batches;
+	}
+
+	// -- UsageMetricsMBean methods --
+
+	@Override
+	public double getBuildTimeP50() {
+		return millis(buildTimes.getValueAtPercentile(50));
+	}
+
+	@Override
+	public double getBuildTimeP99() {
+		return millis(buildTimes.getValueAtPercentile(99));
+	}
+
+	@Override
+	public double getBuildTimeMax() {
+		return millis(buildTimes.getMax());
+	}
+
+	@Override
+	public long getPayloadBytesP50() {
+		return payloadSizes.getValueAtPercentile(50);
+	}
+
+	@Override
+	public long getPayloadBytesP99() {
+		return payloadSizes.getValueAtPercentile(99);
+	}
+
+	@Override
+	public long getPayloadBytesMax() {
+		return payloadSizes.getMax();
+	}
+
+	@Override
+	public double getUploadLatencyP50() {
+		return millis(uploadLatencies.getValueAtPercentile(50));
+	}
+
+	@Override
+	public double getUploadLatencyP99() {
+		return millis(uploadLatencies.getValueAtPercentile(99));
+	}
+
+	@Override
+	public double getUploadLatencyMax() {
+		return millis(uploadLatencies.getMax());
+	}
+
+	// -- Service methods --
+
+	@Override
+	public void initialize() {
+		rateTime = System.nanoTime();
+		// NB: Several contexts may coexist in one JVM; register each separately.
+		final String name = JMX_DOMAIN + ":type=UsageMetrics,context=" +
+			Integer.toHexString(System.identityHashCode(getContext()));
+		try {
+			objectName = new ObjectName(name);
+			mBeanServer().registerMBean(
+				new StandardMBean(this, UsageMetricsMBean.class), objectName);
+		}
+		catch (final JMException exc) {
+			log.warn("Cannot register usage metrics MBean", exc);
+			objectName = null;
+		}
+	}
+
+	@Override
+	public void dispose() {
+		if (objectName == null) return;
+		try {
+			mBeanServer().unregisterMBean(objectName);
+		}
+		catch (final JMException exc) {
+			log.debug("Cannot unregister usage metrics MBean", exc);
+		}
+		objectName = null;
+	}
+
+	// -- Helper methods --
+
+	private MBeanServer mBeanServer() {
+		return ManagementFactory.getPlatformMBeanServer();
+	}
+
+	private double millis(final long nanos) {
+		return nanos / 1e6;
+	}
+
+}
@@ -31,29 +31,104 @@
 
 package net.imagej.usage;
 
-import java.util.HashMap;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.imagej.updater.UpdateService;
+import net.imagej.usage.options.PrivacyOptions;
 
 import org.scijava.Identifiable;
 import org.scijava.Locatable;
 import org.scijava.event.EventHandler;
+import org.scijava.log.LogService;
+import org.scijava.module.Module;
 import org.scijava.module.ModuleInfo;
+import org.scijava.module.event.ModuleCanceledEvent;
+import org.scijava.module.event.ModuleErroredEvent;
 import org.scijava.module.event.ModuleExecutedEvent;
+import org.scijava.module.event.ModuleExecutingEvent;
+import org.scijava.options.OptionsService;
+import org.scijava.options.event.OptionsEvent;
+import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 import org.scijava.service.AbstractService;
 import org.scijava.service.Service;
-import org.scijava.thread.ThreadService;
 
 /**
  * Default service for tracking anonymous usage statistics.
  * <p>
- * Please note that that this implementation is <em>not</em> thread safe. It is
- * up to the caller to ensure that multiple threads do not attempt to modify
- * statistics at the same time. One way to do that (but not the only way) is to
- * only call {@link #increment(Object)} from the event dispatch thread (i.e.,
- * when {@link ThreadService#isDispatchThread()} returns true). And one easy way
- * to accomplish that is by calling the {@link UsageService} only from event
- * handler methods.
+ * This implementation is thread safe: modules publish their execution events
+ * on whichever thread runs them, so statistics may be recorded concurrently.
+ * Besides counting module executions, it times each one, from
+ * {@link ModuleExecutingEvent} to {@link ModuleExecutedEvent}. This excludes
+ * preprocessing such as input harvesting, which may wait on the user.
+ * Executions racing with {@link #snapshotStats()} are counted in either that
+ * snapshot or the next, never lost nor counted twice (barring evictions,
+ * below).
+ * </p>
+ * <p>
+ * Optionally, the CPU time and bytes allocated by the executing thread are
+ * also accounted per module; see {@link #setResourcesMeasured(boolean)}.
+ * </p>
+ * <p>
+ * At extreme event rates, events may be sampled rather than all recorded;
+ * see {@link #setSamplingRate(int)} and {@link #setSamplingTarget(long)}.
+ * Counts of sampled events are scaled up accordingly, and flagged as
+ * {@link UsageStats#isEstimated() estimated}.
+ * </p>
+ * <p>
+ * Identifiers may be effectively unbounded (e.g., legacy commands with
+ * arguments), so the table can be limited to a fixed number of entries; see
+ * {@link #setCapacity(int)}. When a full table meets a new identifier, the
+ * least used eighth of the entries are evicted in the manner of the
+ * Space-Saving algorithm: subsequent new entries start from the largest
+ * evicted count, which bounds their {@link UsageStats#getError() error}.
+ * Frequently used identifiers are thus counted exactly, and the long tail
+ * approximately, in fixed memory.
+ * </p>
+ * <p>
+ * Identifiers are canonicalized before they are counted, by a
+ * {@link PatternCanonicalizer} unless configured otherwise; see
+ * {@link #setCanonicalizer(UsageCanonicalizer)}. Canonical forms are cached
+ * per raw identifier.
+ * </p>
+ * <p>
+ * To keep the heap footprint predictable, the table can also be given a
+ * memory budget; see {@link #setMemoryBudget(long)}. Once over budget, the
+ * coldest entries are spilled to a temporary file, and merged back in by
+ * {@link #snapshotStats()}. Spilled entries leave the table at once, but are
+ * written only once the recordings which may have found them have finished,
+ * so that no increment is lost to the spill.
+ * </p>
+ * <p>
+ * When an {@link UpdateService} is available, objects which would not be
+ * reported anyway (those not from an official update site, such as user
+ * scripts and local JARs) are never entered into the table, from the first
+ * snapshot on. The verdict is cached per location, and refreshed whenever the
+ * table is cleared; see {@link #setUnreportableSkipped(boolean)}.
+ * </p>
+ * <p>
+ * Besides their overall counts, module executions are counted by
+ * {@link UsageOutcome}: whether they completed, were canceled, or failed.
+ * These counters are packed into primitive arrays by identifier (see
+ * {@link OutcomeCounters}), so counting allocates nothing per event. Like the
+ * table, they are replaced at each snapshot, into whose entries they are
+ * drained; they are sampled and weighted like the counts, bounded by the
+ * same capacity, and charged against the same memory budget.
+ * </p>
+ * <p>
+ * Module executions are only recorded while anonymous usage statistics are
+ * being collected, per the {@link PrivacyOptions}; see
+ * {@link #setCollecting(boolean)}.
  * </p>
  * 
  * @author Curtis Rueden
@@ -63,8 +138,269 @@ public class DefaultUsageService extends AbstractService
 	implements UsageService
 {
 
+	/**
+	 * System property which, when set to true, enables measurement of module
+	 * CPU time and allocated bytes at startup.
+	 */
+	public static final String RESOURCES_PROPERTY = "imagej.usage.resources";
+
+	/** System property limiting the number of table entries at startup. */
+	public static final String CAPACITY_PROPERTY = "imagej.usage.capacity";
+
+	/** System property setting a fixed sampling rate at startup. */
+	public static final String SAMPLING_PROPERTY = "imagej.usage.sampling";
+
+	/** System property setting a target sampled event rate at startup. */
+	public static final String SAMPLING_TARGET_PROPERTY =
+		"imagej.usage.samplingTarget";
+
+	/**
+	 * System property which, when set to false, records usage of objects which
+	 * would not be reported.
+	 */
+	public static final String SKIP_UNREPORTABLE_PROPERTY =
+		"imagej.usage.skipUnreportable";
+
+	/** System property setting the table's memory budget in bytes at startup. */
+	public static final String MEMORY_BUDGET_PROPERTY =
+		"imagej.usage.memoryBudget";
+
+	/**
+	 * System property naming a directory in which to keep a local history of
+	 * usage counts, appended at each snapshot.
+	 */
+	public static final String HISTORY_PROPERTY = "imagej.usage.history";
+
+	/** Maximum number of cached canonical identifiers. */
+	private static final int CANONICAL_CACHE_SIZE = 4096;
+
+	@Parameter
+	private LogService log;
+
+	@Parameter(required = false)
+	private OptionsService optionsService;
+
 	/** Table of usage statistics. */
-	private HashMap<String, UsageStats> stats = new HashMap<String, UsageStats>();
+	private volatile ConcurrentHashMap<String, UsageStats> stats =
+		new ConcurrentHashMap<String, UsageStats>();
+
+	/** Counts of module executions by outcome, since the last snapshot. */
+	private volatile OutcomeCounters outcomes = new OutcomeCounters();
+
+	/** Recordings in progress against the current table. */
+	private volatile Recorders recorders = new Recorders(null);
+
+	/** Total number of increments, across all tables. */
+	private final LongAdder incrementCount = new LongAdder();
+
+	/** Measures the execution times of modules. */
+	private final ModuleTimer timer = new ModuleTimer();
+
+	/** Decides which events to record. */
+	private final UsageSampler sampler = new UsageSampler();
+
+	/** Maximum number of table entries, or 0 for no limit. */
+	private volatile int capacity;
+
+	/** Largest count evicted from the current table. */
+	private long evictedCount;
+
+	/** Guards evictions and spills from the table. */
+	private final Object evictionLock = new Object();
+
+	/** Approximate memory budget of the table in bytes, or 0 for no limit. */
+	private volatile long memoryBudget;
+
+	/** Estimated bytes of the table's entries, as of their insertion. */
+	private final AtomicLong chargedBytes = new AtomicLong();
+
+	/** Entries spilled out of the current table. */
+	private final UsageSpill spill = new UsageSpill();
+
+	/** Entries removed from the table to be spilled, but not yet written. */
+	private List<UsageStats> unspilled = new ArrayList<UsageStats>();
+
+	/** Whether there are entries to be spilled; see {@link #exit(Recorders)}. */
+	private volatile boolean spillPending;
+
+	/** Number of times the spill has been discarded by {@link #clearStats()}. */
+	private int clearCount;
+
+	/** Maps raw identifiers to canonical ones, or null to use them verbatim. */
+	private volatile UsageCanonicalizer canonicalizer =
+		new PatternCanonicalizer();
+
+	/** Cache of canonical identifiers, keyed on raw identifier. */
+	private final ConcurrentHashMap<String, String> canonicalIds =
+		new ConcurrentHashMap<String, String>();
+
+	/** Cache of which locations are trackable, or null to track all. */
+	private volatile UpdateSiteCache updateSites;
+
+	/** Whether update sites have been looked up yet. */
+	private boolean updateSitesResolved;
+
+	/** Whether module executions are being recorded. */
+	private volatile boolean collecting = true;
+
+	/** Whether the privacy options have been consulted yet. */
+	private volatile boolean collectingResolved;
+
+	/** Whether objects which would not be reported are left untracked. */
+	private volatile boolean unreportableSkipped = true;
+
+	/** Local history of usage counts, or null if none is kept. */
+	private volatile UsageHistory history;
+
+	/** Ordered index of the table for queries, or null until first queried. */
+	private volatile UsageIndex index;
+
+	// -- DefaultUsageService methods --
+
+	/**
+	 * Sets whether module executions are recorded. This follows
+	 * {@link PrivacyOptions#isUsageCollected()} automatically whenever the
+	 * privacy options change. Turning it off releases all recorded statistics.
+	 */
+	public void setCollecting(final boolean collecting) {
+		collectingResolved = true;
+		this.collecting = collecting;
+		if (collecting) return;
+		clearStats();
+		canonicalIds.clear();
+	}
+
+	/** Gets whether module executions are being recorded. */
+	public boolean isCollecting() {
+		if (!collectingResolved) resolveCollecting();
+		return collecting;
+	}
+
+	/**
+	 * Sets whether to measure the CPU time and bytes allocated by each module
+	 * execution. Measurement is skipped if the JVM does not support it.
+	 */
+	public void setResourcesMeasured(final boolean resourcesMeasured) {
+		timer.setResourcesMeasured(resourcesMeasured);
+	}
+
+	/** Gets whether module CPU time or allocated bytes are being measured. */
+	public boolean isResourcesMeasured() {
+		return timer.isResourcesMeasured();
+	}
+
+	/**
+	 * Sets the maximum number of entries in the table of usage statistics, or 0
+	 * for no limit (the default).
+	 */
+	public void setCapacity(final int capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		}
+		this.capacity = capacity;
+	}
+
+	/** Gets the maximum number of table entries, or 0 if unlimited. */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Sets whether usage of objects which would not be reported (i.e., those
+	 * not from an official update site) is left unrecorded. This has no effect
+	 * when no {@link UpdateService} is available, nor before the first snapshot
+	 * of the statistics (see {@link #snapshotStats()}), since resolving update
+	 * sites loads the update site database, which is left until the first
+	 * upload. Until then, usage is recorded regardless and filtered at upload.
+	 */
+	public void setUnreportableSkipped(final boolean unreportableSkipped) {
+		this.unreportableSkipped = unreportableSkipped;
+	}
+
+	/** Gets whether usage of objects which would not be reported is skipped. */
+	public boolean isUnreportableSkipped() {
+		return unreportableSkipped;
+	}
+
+	/**
+	 * Forgets which locations are reportable, so that their update sites are
+	 * resolved anew. Call this after update sites are added, removed or changed.
+	 */
+	public void invalidateUpdateSites() {
+		if (updateSites != null) updateSites.clear();
+	}
+
+	/**
+	 * Sets the approximate number of bytes the table of usage statistics may
+	 * occupy, or 0 for no limit (the default). Beyond that, the least recently
+	 * used entries are spilled to disk until the next snapshot.
+	 */
+	public void setMemoryBudget(final long bytes) {
+		if (bytes < 0) {
+			throw new IllegalArgumentException("Invalid memory budget: " + bytes);
+		}
+		memoryBudget = bytes;
+	}
+
+	/** Gets the table's memory budget in bytes, or 0 if unlimited. */
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * Sets the directory in which to keep a local history of usage counts, or
+	 * null to keep none (the default). Each snapshot of the statistics is
+	 * appended to the history, as is the remaining usage upon disposal.
+	 */
+	public void setHistoryDirectory(final File dir) {
+		history = dir == null ? null : new UsageHistory(dir);
+	}
+
+	/** Gets the directory of the local usage history, or null if none. */
+	public File getHistoryDirectory() {
+		final UsageHistory h = history;
+		return h == null ? null : h.getDirectory();
+	}
+
+	/**
+	 * Sets how raw identifiers are canonicalized before being counted, or null
+	 * to count them verbatim.
+	 */
+	public void setCanonicalizer(final UsageCanonicalizer canonicalizer) {
+		this.canonicalizer = canonicalizer;
+		canonicalIds.clear();
+	}
+
+	/** Gets how raw identifiers are canonicalized, or null if they are not. */
+	public UsageCanonicalizer getCanonicalizer() {
+		return canonicalizer;
+	}
+
+	/**
+	 * Sets a fixed sampling rate: one event in this many is recorded, at
+	 * random. A rate of 1 (the default) records every event.
+	 */
+	public void setSamplingRate(final int rate) {
+		sampler.setRate(rate);
+	}
+
+	/** Gets the current sampling rate. */
+	public int getSamplingRate() {
+		return sampler.getRate();
+	}
+
+	/**
+	 * Sets a target number of recorded events per second, adapting the sampling
+	 * rate to the observed event rate; or 0 to keep the current rate fixed.
+	 */
+	public void setSamplingTarget(final long eventsPerSecond) {
+		sampler.setTarget(eventsPerSecond);
+	}
+
+	/** Gets the target number of recorded events per second, or 0 if none. */
+	public long getSamplingTarget() {
+		return sampler.getTarget();
+	}
 
 	// -- UsageService methods --
 
@@ -79,7 +415,104 @@ public class DefaultUsageService extends AbstractService
 		// so that references to the old table are not modified. In this way,
 		// any code that obtained the old table reference directly by calling
 		// getStats() can continue working with it unimpeded.
-		stats = new HashMap<String, UsageStats>();
+		synchronized (evictionLock) {
+			swapTable();
+			spill.discard();
+			unspilled = new ArrayList<UsageStats>();
+			clearCount++;
+		}
+		// NB: Update sites may have changed since their verdicts were cached.
+		invalidateUpdateSites();
+	}
+
+	@Override
+	public Map<String, UsageStats> snapshotStats() {
+		final Map<String, UsageStats> snapshot;
+		final Recorders recording;
+		final OutcomeCounters counted;
+		List<UsageStats> spilled = Collections.emptyList();
+		final List<UsageStats> removed;
+		synchronized (evictionLock) {
+			recording = recorders;
+			counted = outcomes;
+			snapshot = swapTable();
+			if (spill.size() > 0) {
+				try {
+					spilled = spill.drain();
+				}
+				catch (final IOException exc) {
+					log.warn("Cannot read spilled usage statistics", exc);
+				}
+			}
+			// NB: Entries not yet written to the spill are merged back directly.
+			removed = unspilled;
+			unspilled = new ArrayList<UsageStats>();
+		}
+		// NB: Let recordings which may have found the old table finish with it,
+		// so that no increment is lost to the snapshot.
+		recording.await();
+		invalidateUpdateSites();
+		resolveUpdateSites();
+		merge(snapshot, spilled);
+		merge(snapshot, removed);
+		counted.drain(snapshot);
+		record(snapshot);
+		return snapshot;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The first query builds an ordered index of the table, which is thereafter
+	 * maintained incrementally; subsequent queries take O(k log n) time. Only
+	 * statistics held in the table (not those spilled to disk) are considered.
+	 * </p>
+	 */
+	@Override
+	public List<UsageStats> getMostUsed(final int n) {
+		return index().top(stats, n);
+	}
+
+	@Override
+	public List<UsageStats> getMostUsed(final String updateSite, final int n) {
+		return index().top(stats, updateSite, n);
+	}
+
+	@Override
+	public List<UsageStats> getUsageByPrefix(final String prefix) {
+		return index().withPrefix(stats, prefix);
+	}
+
+	@Override
+	public Map<String, Long> getUsageHistory(final int fromDay,
+		final int toDay)
+	{
+		final UsageHistory h = history;
+		if (h == null) return UsageService.super.getUsageHistory(fromDay, toDay);
+		try {
+			return h.totals(fromDay, toDay);
+		}
+		catch (final IOException exc) {
+			log.warn("Cannot read usage history", exc);
+			return UsageService.super.getUsageHistory(fromDay, toDay);
+		}
+	}
+
+	@Override
+	public long[] getUsageHistory(final String id, final int fromDay,
+		final int toDay)
+	{
+		final UsageHistory h = history;
+		if (h == null) {
+			return UsageService.super.getUsageHistory(id, fromDay, toDay);
+		}
+		try {
+			return h.daily(id, fromDay, toDay);
+		}
+		catch (final IOException exc) {
+			log.warn("Cannot read usage history", exc);
+			return UsageService.super.getUsageHistory(id, fromDay, toDay);
+		}
 	}
 
 	@Override
@@ -88,24 +521,519 @@ public class DefaultUsageService extends AbstractService
 			// only track objects with an identifier and a location
 			return null;
 		}
-		final String id = ((Identifiable) o).getIdentifier();
-		if (!stats.containsKey(id)) stats.put(id, new UsageStats(o));
-		return stats.get(id);
+		final String id = canonicalId(((Identifiable) o).getIdentifier());
+		final ConcurrentHashMap<String, UsageStats> table = stats;
+		final UsageStats usageStats = table.get(id);
+		if (usageStats != null) return usageStats;
+		if (unreportableSkipped && updateSites != null &&
+			!updateSites.isTrackable(((Locatable) o).getLocation()))
+		{
+			// only track objects whose usage would be reported
+			return null;
+		}
+		final UsageStats newStats = new UsageStats(o, id);
+		final UsageStats usage;
+		if (capacity > 0) usage = putBounded(id, newStats);
+		else {
+			final UsageStats oldStats = table.putIfAbsent(id, newStats);
+			usage = oldStats == null ? newStats : oldStats;
+		}
+		// NB: Charge only for an entry actually inserted.
+		if (usage == newStats && memoryBudget > 0) charge(newStats);
+		return usage;
 	}
 
 	@Override
 	public void increment(final Object o) {
-		final UsageStats usageStats = getUsage(o);
-		if (usageStats == null) return;
-		usageStats.increment();
+		final int weight = sampler.sample();
+		if (weight == 0) return;
+		final Recorders r = enter();
+		try {
+			final UsageStats usageStats = getUsage(o);
+			if (usageStats == null) return;
+			usageStats.increment(weight);
+			incrementCount.add(weight);
+			touch(usageStats);
+		}
+		finally {
+			exit(r);
+		}
+	}
+
+	@Override
+	public long getIncrementCount() {
+		return incrementCount.sum();
+	}
+
+	// -- Helper methods --
+
+	/** Gets the canonical form of the given raw identifier. */
+	private String canonicalId(final String rawId) {
+		final UsageCanonicalizer c = canonicalizer;
+		if (c == null || rawId == null) return rawId;
+		final String cached = canonicalIds.get(rawId);
+		if (cached != null) return cached;
+		final String id = c.canonicalize(rawId);
+		// NB: Raw identifiers may be unbounded; so too would be the cache.
+		if (canonicalIds.size() >= CANONICAL_CACHE_SIZE) canonicalIds.clear();
+		canonicalIds.put(rawId, id);
+		return id;
+	}
+
+	/**
+	 * Replaces the table with an empty one, returning the old table. The caller
+	 * must hold the eviction lock.
+	 */
+	private ConcurrentHashMap<String, UsageStats> swapTable() {
+		final ConcurrentHashMap<String, UsageStats> table = stats;
+		stats = new ConcurrentHashMap<String, UsageStats>();
+		outcomes = new OutcomeCounters();
+		// NB: Replace the recorders only after the table; see enter().
+		recorders = new Recorders(recorders);
+		evictedCount = 0;
+		chargedBytes.set(0);
+		final UsageIndex idx = index;
+		if (idx != null) idx.clear();
+		return table;
+	}
+
+	/** Gets the ordered index of the table, building it if needed. */
+	private synchronized UsageIndex index() {
+		if (index == null) {
+			resolveUpdateSites();
+			final UsageIndex idx = new UsageIndex(updateSites);
+			// NB: Publish first, so concurrent increments are not missed.
+			index = idx;
+			for (final UsageStats usage : stats.values()) {
+				idx.touch(usage);
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Looks up the {@link UpdateService}, if not done already, so that update
+	 * sites are resolved from now on.
+	 */
+	private synchronized void resolveUpdateSites() {
+		if (updateSitesResolved) return;
+		updateSitesResolved = true;
+		final UpdateService updateService =
+			getContext().getService(UpdateService.class);
+		if (updateService != null) {
+			updateSites = new UpdateSiteCache(updateService);
+		}
+	}
+
+	/**
+	 * Consults the {@link PrivacyOptions}, if not done already, as to whether
+	 * module executions are recorded. Loading the options is left until the
+	 * first module execution rather than done while the context starts up.
+	 */
+	private synchronized void resolveCollecting() {
+		if (collectingResolved) return;
+		collectingResolved = true;
+		if (optionsService == null) return;
+		collecting = optionsService.getOptions(PrivacyOptions.class)
+			.isUsageCollected();
+	}
+
+	/** Appends a snapshot of the statistics to the history, if one is kept. */
+	private void record(final Map<String, UsageStats> snapshot) {
+		final UsageHistory h = history;
+		if (h == null || snapshot.isEmpty()) return;
+		try {
+			h.append(UsageHistory.today(), snapshot.values());
+		}
+		catch (final IOException exc) {
+			log.warn("Cannot record usage history", exc);
+		}
+	}
+
+	/** Counts an execution of the given module which did not complete. */
+	private void countFailure(final ModuleInfo info,
+		final UsageOutcome outcome)
+	{
+		final int weight = sampler.sample();
+		if (weight == 0) return;
+		final Recorders r = enter();
+		try {
+			countOutcome(info, outcome, weight);
+		}
+		finally {
+			exit(r);
+		}
+	}
+
+	/**
+	 * Counts an outcome of the given module's execution, with the weight of
+	 * its sample. The caller must have registered the recording; see
+	 * {@link #enter()}.
+	 */
+	private void countOutcome(final ModuleInfo info,
+		final UsageOutcome outcome, final int weight)
+	{
+		final String id = canonicalId(info.getIdentifier());
+		final OutcomeCounters counters = outcomes;
+		if (id == null || counters.increment(id, outcome, weight)) return;
+		if (unreportableSkipped && updateSites != null &&
+			!updateSites.isTrackable(info.getLocation()))
+		{
+			return;
+		}
+		final UsageStats details = new UsageStats(info, id);
+		if (memoryBudget > 0) {
+			charge(details.estimateBytes() + OutcomeCounters.SLOT_BYTES);
+		}
+		counters.add(details, outcome, weight, capacity);
+	}
+
+	/**
+	 * Registers a recording against the current table, to be matched by an
+	 * increment of the returned recorders' {@code exited} count when done.
+	 * <p>
+	 * A recording registered with the current recorders may yet find the old
+	 * table, if the table is being swapped; but then {@link #snapshotStats()}
+	 * waits for it to finish. This costs two striped counter increments per
+	 * recording, rather than a lock.
+	 * </p>
+	 */
+	private Recorders enter() {
+		while (true) {
+			final Recorders r = recorders;
+			r.entered.increment();
+			if (r == recorders) return r;
+			// NB: The table was swapped meanwhile; register with the new one.
+			r.exited.increment();
+		}
+	}
+
+	/**
+	 * Finishes a recording registered by {@link #enter()}, then writes any
+	 * entries waiting to be spilled.
+	 */
+	private void exit(final Recorders r) {
+		r.exited.increment();
+		// NB: Spills are written only outside of recordings, since writing one
+		// waits for the recordings which may have found its entries.
+		if (spillPending) writeSpill();
+	}
+
+	/**
+	 * Writes the entries removed from the table to the spill, once the
+	 * recordings which may have found them have finished.
+	 */
+	private void writeSpill() {
+		final List<UsageStats> removed;
+		final Recorders recording;
+		final int cleared;
+		synchronized (evictionLock) {
+			if (!spillPending) return;
+			spillPending = false;
+			removed = unspilled;
+			unspilled = new ArrayList<UsageStats>();
+			recording = recorders;
+			recorders = new Recorders(recording);
+			cleared = clearCount;
+		}
+		recording.await();
+		synchronized (evictionLock) {
+			// NB: The entries are obsolete if the statistics were cleared meanwhile.
+			if (cleared != clearCount) return;
+			for (int i = 0; i < removed.size(); i++) {
+				try {
+					spill.write(removed.get(i));
+				}
+				catch (final IOException exc) {
+					log.warn("Cannot spill usage statistics", exc);
+					// NB: Keep the rest in memory, for the next snapshot to merge.
+					unspilled.addAll(removed.subList(i, removed.size()));
+					break;
+				}
+			}
+		}
+	}
+
+	/** Merges the given statistics into a snapshot. */
+	private static void merge(final Map<String, UsageStats> snapshot,
+		final List<UsageStats> stats)
+	{
+		for (final UsageStats usage : stats) {
+			final UsageStats live = snapshot.get(usage.getIdentifier());
+			if (live == null) snapshot.put(usage.getIdentifier(), usage);
+			else live.merge(usage);
+		}
+	}
+
+	/** Notes a changed count in the ordered index, if there is one. */
+	private void touch(final UsageStats usage) {
+		final UsageIndex idx = index;
+		if (idx != null) idx.touch(usage);
+	}
+
+	/** Adds an entry to the table, evicting entries as needed to make room. */
+	private UsageStats putBounded(final String id, final UsageStats newStats) {
+		synchronized (evictionLock) {
+			final ConcurrentHashMap<String, UsageStats> table = stats;
+			final UsageStats oldStats = table.get(id);
+			if (oldStats != null) return oldStats;
+			final int max = capacity;
+			if (max > 0 && table.size() >= max) evict(table, max);
+			if (evictedCount > 0) newStats.inherit(evictedCount);
+			table.put(id, newStats);
+			return newStats;
+		}
+	}
+
+	/**
+	 * Charges a newly inserted entry against the memory budget, spilling
+	 * other entries to disk if the budget is exceeded.
+	 */
+	private void charge(final UsageStats newStats) {
+		// NB: Assume the entry will soon record execution times.
+		charge(newStats.estimateBytes() + //
+			(newStats.getTimes() == null ? UsageStats.HISTOGRAM_BYTES : 0),
+			newStats);
+	}
+
+	/**
+	 * Charges the given number of bytes against the memory budget, spilling
+	 * entries to disk if the budget is exceeded.
+	 */
+	private void charge(final long bytes) {
+		charge(bytes, null);
+	}
+
+	/**
+	 * Charges the given number of bytes against the memory budget, spilling
+	 * entries other than the given one to disk if the budget is exceeded.
+	 */
+	private void charge(final long bytes, final UsageStats kept) {
+		final long budget = memoryBudget;
+		if (chargedBytes.addAndGet(bytes) <= budget) return;
+		synchronized (evictionLock) {
+			if (chargedBytes.get() > budget) spill(stats, budget, kept);
+		}
+	}
+
+	/**
+	 * Spills the coldest entries, other than the given one just inserted, to
+	 * disk until the table is within three quarters of the memory budget.
+	 * Entries unused since the previous spill are coldest, followed by the
+	 * least used.
+	 * <p>
+	 * As with evictions, entries are spilled in batches so that the cost of
+	 * finding them is amortized over many insertions. They leave the table
+	 * here, but are written by {@link #writeSpill()} once out of the recording
+	 * which spilled them.
+	 * </p>
+	 */
+	private void spill(final ConcurrentHashMap<String, UsageStats> table,
+		final long budget, final UsageStats kept)
+	{
+		final List<Candidate> candidates =
+			new ArrayList<Candidate>(table.size());
+		long bytes = 0;
+		for (final UsageStats usage : table.values()) {
+			final Candidate candidate = new Candidate(usage);
+			candidates.add(candidate);
+			bytes += candidate.bytes;
+		}
+		final long target = budget - budget / 4;
+		if (bytes > target) {
+			Collections.sort(candidates);
+			for (final Candidate candidate : candidates) {
+				if (bytes <= target) break;
+				final UsageStats usage = candidate.usage;
+				if (usage == kept) continue;
+				if (!table.remove(usage.getIdentifier(), usage)) continue;
+				unspilled.add(usage);
+				spillPending = true;
+				bytes -= candidate.bytes;
+			}
+		}
+		for (final UsageStats usage : table.values()) {
+			usage.sweptCount = usage.getCount();
+		}
+		// NB: If still over budget (e.g., because of the entry just inserted),
+		// wait for another quarter of the budget to be charged before trying
+		// again.
+		chargedBytes.set(Math.min(bytes, target));
+	}
+
+	/**
+	 * Evicts the least used eighth of the table's entries, remembering the
+	 * largest evicted count.
+	 * <p>
+	 * Entries are evicted in batches so that the cost of finding them is
+	 * amortized over many insertions.
+	 * </p>
+	 */
+	private void evict(final ConcurrentHashMap<String, UsageStats> table,
+		final int max)
+	{
+		final long[] counts = new long[table.size()];
+		int n = 0;
+		for (final UsageStats usage : table.values()) {
+			if (n == counts.length) break;
+			counts[n++] = usage.getCount();
+		}
+		Arrays.sort(counts, 0, n);
+		int toEvict = Math.max(1, Math.max(n - max, 0) + max / 8);
+		final long threshold = counts[Math.min(toEvict, n) - 1];
+		final Iterator<UsageStats> iter = table.values().iterator();
+		while (toEvict > 0 && iter.hasNext()) {
+			final UsageStats usage = iter.next();
+			final long count = usage.getCount();
+			if (count > threshold) continue;
+			iter.remove();
+			evictedCount = Math.max(evictedCount, count);
+			toEvict--;
+		}
+	}
+
+	// -- Service methods --
+
+	@Override
+	public void dispose() {
+		// NB: Usage not yet snapshotted would otherwise be lost to the history.
+		if (history != null) snapshotStats();
+		synchronized (evictionLock) {
+			spill.discard();
+			unspilled = new ArrayList<UsageStats>();
+		}
+	}
+
+	@Override
+	public void initialize() {
+		setUnreportableSkipped(!"false".equals(System.getProperty(
+			SKIP_UNREPORTABLE_PROPERTY)));
+		setResourcesMeasured(Boolean.getBoolean(RESOURCES_PROPERTY));
+		setCapacity(Integer.getInteger(CAPACITY_PROPERTY, 0));
+		setMemoryBudget(Long.getLong(MEMORY_BUDGET_PROPERTY, 0));
+		setSamplingRate(Integer.getInteger(SAMPLING_PROPERTY, 1));
+		final Long target = Long.getLong(SAMPLING_TARGET_PROPERTY);
+		if (target != null) setSamplingTarget(target);
+		final String historyDir = System.getProperty(HISTORY_PROPERTY);
+		if (historyDir != null) setHistoryDirectory(new File(historyDir));
 	}
 
 	// -- Event handlers --
 
+	@EventHandler
+	private void onEvent(final ModuleExecutingEvent evt) {
+		if (!isCollecting()) return;
+		timer.start(evt.getModule());
+	}
+
 	@EventHandler
 	private void onEvent(final ModuleExecutedEvent evt) {
-		final ModuleInfo info = evt.getModule().getInfo();
-		increment(info);
+		if (!isCollecting()) return;
+		final Module module = evt.getModule();
+		final ModuleTimer.Measurement m = timer.stop(module);
+		final ModuleInfo info = module.getInfo();
+		final int weight = sampler.sample();
+		if (weight == 0) return;
+		final Recorders r = enter();
+		try {
+			countOutcome(info, UsageOutcome.EXECUTED, weight);
+			final UsageStats usageStats = getUsage(info);
+			if (usageStats == null) return;
+			usageStats.increment(weight);
+			incrementCount.add(weight);
+			touch(usageStats);
+			if (m == null) return;
+			usageStats.recordTime(m.time / 1000);
+			if (m.cpuTime >= 0 || m.allocatedBytes >= 0) {
+				usageStats.recordResources(m.cpuTime, m.allocatedBytes);
+			}
+		}
+		finally {
+			exit(r);
+		}
+	}
+
+	@EventHandler
+	private void onEvent(final ModuleCanceledEvent evt) {
+		timer.discard(evt.getModule());
+		if (!isCollecting()) return;
+		countFailure(evt.getModule().getInfo(), UsageOutcome.CANCELED);
+	}
+
+	@EventHandler
+	private void onEvent(final ModuleErroredEvent evt) {
+		timer.discard(evt.getModule());
+		if (!isCollecting()) return;
+		countFailure(evt.getModule().getInfo(), UsageOutcome.ERRORED);
+	}
+
+	/** Starts or stops recording when the privacy options change. */
+	@EventHandler
+	private void onEvent(final OptionsEvent evt) {
+		if (!(evt.getOptions() instanceof PrivacyOptions)) return;
+		final PrivacyOptions options = (PrivacyOptions) evt.getOptions();
+		if (options.isUsageCollected() != isCollecting()) {
+			setCollecting(options.isUsageCollected());
+		}
+	}
+
+	// -- Helper classes --
+
+	/** Counts of recordings begun and finished against one table. */
+	private static class Recorders {
+
+		private final LongAdder entered = new LongAdder();
+		private final LongAdder exited = new LongAdder();
+
+		/**
+		 * The recorders these replaced, whose recordings may still be in
+		 * progress, or null once those are known to have finished.
+		 */
+		private volatile Recorders previous;
+
+		public Recorders(final Recorders previous) {
+			this.previous = previous;
+		}
+
+		/**
+		 * Waits until all recordings begun, with these recorders or those they
+		 * replaced, have finished.
+		 */
+		public void await() {
+			for (Recorders r = this; r != null; r = r.previous) {
+				// NB: Read the exits first; as every exit follows its entry, equal
+				// sums then mean none was in progress.
+				while (r.exited.sum() != r.entered.sum()) {
+					Thread.yield();
+				}
+			}
+			previous = null;
+		}
+	}
+
+	/**
+	 * An entry which may be spilled, with its usage captured at one moment so
+	 * that concurrent increments cannot disturb the sort order.
+	 */
+	private static class Candidate implements Comparable<Candidate> {
+
+		private final UsageStats usage;
+		private final long count;
+		private final long recent;
+		private final long bytes;
+
+		public Candidate(final UsageStats usage) {
+			this.usage = usage;
+			count = usage.getCount();
+			recent = count - usage.sweptCount;
+			bytes = usage.estimateBytes();
+		}
+
+		@Override
+		public int compareTo(final Candidate that) {
+			if (recent != that.recent) return recent < that.recent ? -1 : 1;
+			return count < that.count ? -1 : count > that.count ? 1 : 0;
+		}
 	}
 
 }
@@ -31,9 +31,14 @@
 
 package net.imagej.usage;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -52,6 +57,7 @@ import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 import org.scijava.service.AbstractService;
 import org.scijava.service.Service;
+import org.scijava.thread.ThreadService;
 import org.scijava.util.ByteArray;
 import org.scijava.util.DigestUtils;
 import org.scijava.util.IteratorPlus;
@@ -59,6 +65,19 @@ import org.scijava.welcome.event.WelcomeEvent;
 
 /**
  * Default service for uploading anonymous usage statistics.
+ * <p>
+ * Statistics are uploaded once per hour, unless the server directs otherwise:
+ * it may ask for a different upload interval, defer batches to be sent again
+ * later, or limit the size of batches. See {@link JSONUploader}.
+ * </p>
+ * <p>
+ * When the {@link #SHARED_PROPERTY} is set, the processes of a host pool their
+ * statistics in a shared segment, and only the elected leader uploads them.
+ * See {@link SharedUsageSegment}. Likewise, when the
+ * {@link #JVM_WIDE_PROPERTY} is set, the contexts of a JVM upload together.
+ * When the {@link #EXPORT_PROPERTY} is set, statistics are written to files
+ * on the same schedule, rather than uploaded.
+ * </p>
  *
  * @author Curtis Rueden
  */
@@ -76,52 +95,143 @@ public class DefaultUsageUploadService extends AbstractService implements
 	/** Key used by server to decode version. */
 	public static final String VERSION_KEY = "usage_version";
 
+	/**
+	 * System property overriding the URL to which statistics are uploaded
+	 * (e.g., to that of a site-local {@link net.imagej.usage.relay.UsageRelay}).
+	 */
+	public static final String SERVER_PROPERTY = "imagej.usage.server";
+
+	/**
+	 * System property naming a directory to which statistics are exported as
+	 * compressed files, instead of being uploaded (e.g., at air-gapped sites).
+	 * See {@link UsageExporter}.
+	 */
+	public static final String EXPORT_PROPERTY = "imagej.usage.export";
+
+	/**
+	 * System property naming a file through which all processes of the host
+	 * share their usage statistics, so that only one of them uploads. Each
+	 * user shares a file of their own, named by appending a hash of the
+	 * anonymized user, lest one user's usage be uploaded as another's.
+	 */
+	public static final String SHARED_PROPERTY = "imagej.usage.shared";
+
+	/**
+	 * System property which, when set to true, makes the contexts of this JVM
+	 * share one upload scheduler, uploading their merged statistics once per
+	 * interval. See {@link UsageAggregator}.
+	 */
+	public static final String JVM_WIDE_PROPERTY = "imagej.usage.jvmWide";
+
+	/** Default interval between uploads: one hour's worth of milliseconds. */
+	static final long RATE = 1000 * 60 * 60;
+
+	/** Shortest interval between uploads the server may direct: one minute. */
+	private static final long MIN_RATE = 1000 * 60;
+
+	/** Longest interval between uploads the server may direct: one week. */
+	private static final long MAX_RATE = 1000L * 60 * 60 * 24 * 7;
+
+	/** Maximum number of deferred batches kept for sending again. */
+	private static final int MAX_DEFERRED = 20;
+
 	@Parameter
 	private LogService log;
 
 	@Parameter
 	private UsageService usageService;
 
-	@Parameter
-	private UpdateService updateService;
-
 	@Parameter
 	private OptionsService optionsService;
 
 	@Parameter
-	private CommandService commandService;
+	private StatusService statusService;
 
 	@Parameter
-	private StatusService statusService;
+	private ThreadService threadService;
+
+	@Parameter(required = false)
+	private UsageMetricsService metricsService;
 
 	private Timer timer;
 
+	/** Milliseconds until the next upload. */
+	private long delay = RATE;
+
+	/** Maximum number of statistics per batch. */
+	private int batchSize = JSONUploader.DEFAULT_BATCH_SIZE;
+
+	/** Batches deferred by the server, to be sent with the next upload. */
+	private final List<JSONObject> deferred = new ArrayList<JSONObject>();
+
+	/** Segment shared with the host's other processes, or null if none. */
+	private SharedUsageSegment segment;
+
+	/** Exporter writing statistics to files instead, or null if uploading. */
+	private UsageExporter exporter;
+
+	/** Update service, looked up on first use; see {@link #updateService()}. */
+	private UpdateService updateService;
+
+	/** JVM-wide aggregator this service has joined, or null if none. */
+	private UsageAggregator aggregator;
+
+	/** This service's part in the aggregator. */
+	private final UsageAggregator.Member member = new UsageAggregator.Member() {
+
+		@Override
+		boolean isCollected() {
+			return DefaultUsageUploadService.this.isCollected();
+		}
+
+		@Override
+		Map<String, UsageStats> snapshot() {
+			return usageService.snapshotStats();
+		}
+
+		@Override
+		long upload(final Map<String, UsageStats> stats) {
+			return DefaultUsageUploadService.this.upload(stats);
+		}
+
+		@Override
+		List<JSONObject> takeDeferred() {
+			synchronized (DefaultUsageUploadService.this) {
+				final List<JSONObject> batches = new ArrayList<JSONObject>(deferred);
+				deferred.clear();
+				return batches;
+			}
+		}
+
+		@Override
+		void adoptDeferred(final List<JSONObject> batches) {
+			synchronized (DefaultUsageUploadService.this) {
+				deferred.addAll(batches);
+			}
+		}
+	};
+
 	// -- UsageUploadService methods --
 
 	@Override
-	public synchronized void uploadUsageStatistics() {
+	public void uploadUsageStatistics() {
+		// NB: When aggregating, upload the statistics of all contexts.
+		if (aggregator != null) {
+			aggregator.upload();
+			return;
+		}
+
 		// verify that anonymous usage statistics are enabled
-		final PrivacyOptions privacyOptions =
-			optionsService.getOptions(PrivacyOptions.class);
-		if (!privacyOptions.isUsageCollected()) return;
+		if (!isCollected()) return;
 
 		// get usage statistics, then flush them
-		final Map<String, UsageStats> stats = usageService.getStats();
-		usageService.clearStats();
-
-		statusService
-			.showStatus("Uploading plugin usage.. thank you for contributing!");
-		// convert and filter stats to JSON, then upload to the server
-		final JSONObject json = json(stats);
-		json.put(VERSION_KEY, VERSION);
-		final String user = getAnonymizedUser();
-		final String url = getServerURL();
-		new JSONUploader(json, log).upload(user, url);
+		upload(usageService.snapshotStats());
 	}
 
 	@Override
 	public String getServerURL() {
-		return "http://usage.imagej.net/stats.php";
+		return System.getProperty(SERVER_PROPERTY,
+			"http://usage.imagej.net/stats.php");
 	}
 
 	@Override
@@ -137,24 +247,56 @@ public class DefaultUsageUploadService extends AbstractService implements
 	// -- Service methods --
 
 	@Override
-	public void initialize() {
-		// compile usage statistics once per hour
-		final long rate = 1000 * 60 * 60; // one hour's worth of milliseconds
-		timer = new Timer();
-		timer.scheduleAtFixedRate(new TimerTask() {
+	public synchronized void initialize() {
+		if (Boolean.getBoolean(JVM_WIDE_PROPERTY)) {
+			// upload along with the JVM's other contexts
+			aggregator = UsageAggregator.getInstance();
+			aggregator.join(member);
+		}
+		else {
+			// compile usage statistics once per hour, unless directed otherwise
+			timer = new Timer();
+			schedule(RATE);
+		}
 
-			@Override
-			public void run() {
-				Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-				uploadUsageStatistics();
+		final String export = System.getProperty(EXPORT_PROPERTY);
+		if (export != null) {
+			try {
+				exporter = new UsageExporter(new File(export));
+			}
+			catch (final IOException exc) {
+				log.warn("Cannot export usage statistics; uploading them instead",
+					exc);
 			}
-		}, rate, rate);
+		}
+
+		final String shared = System.getProperty(SHARED_PROPERTY);
+		if (shared == null) return;
+		try {
+			segment = new SharedUsageSegment(sharedFile(shared));
+		}
+		catch (final IOException exc) {
+			log.warn("Cannot share usage statistics; uploading them alone", exc);
+		}
 	}
 
 	@Override
 	public void dispose() {
-		if (timer != null) timer.cancel();
-		timer = null;
+		// NB: Leave outside of this object's lock, which the aggregator may
+		// need in turn to upload.
+		if (aggregator != null) aggregator.leave(member);
+		synchronized (this) {
+			if (timer != null) timer.cancel();
+			timer = null;
+			if (segment == null) return;
+			try {
+				segment.close();
+			}
+			catch (final IOException exc) {
+				log.warn("Cannot release shared usage segment", exc);
+			}
+			segment = null;
+		}
 	}
 
 	// -- Event handlers --
@@ -164,6 +306,12 @@ public class DefaultUsageUploadService extends AbstractService implements
 	private void onEvent(
 		@SuppressWarnings("unused") final ContextDisposingEvent evt)
 	{
+		// NB: When aggregating, the other contexts upload our statistics; the
+		// last context to leave uploads everyone's one last time.
+		if (aggregator != null) {
+			aggregator.leave(member);
+			return;
+		}
 		// upload usage statistics one last time before shutting down
 		uploadUsageStatistics();
 	}
@@ -171,11 +319,202 @@ public class DefaultUsageUploadService extends AbstractService implements
 	/** Verify privacy settings when an {@link WelcomeEvent} is displayed. */
 	@EventHandler
 	private void onEvent(@SuppressWarnings("unused") final WelcomeEvent event) {
-		commandService.run(PrivacyOptions.class, true);
+		// NB: Verify on another thread, off the startup path announcing the
+		// welcome; the command service, too, is needed only now.
+		threadService.run(new Runnable() {
+
+			@Override
+			public void run() {
+				final CommandService commandService =
+					getContext().getService(CommandService.class);
+				if (commandService != null) {
+					commandService.run(PrivacyOptions.class, true);
+				}
+			}
+		});
 	}
 	
 	// -- Helper methods --
 
+	/** Gets whether the privacy options allow usage statistics collection. */
+	private boolean isCollected() {
+		return optionsService.getOptions(PrivacyOptions.class).isUsageCollected();
+	}
+
+	/**
+	 * Uploads the given statistics.
+	 *
+	 * @return Milliseconds until the next upload, as paced by the server.
+	 */
+	private synchronized long upload(final Map<String, UsageStats> snapshot) {
+		if (updateService() == null) {
+			// NB: Without update sites, no statistics are reportable.
+			log.warn("No update service; cannot upload usage statistics");
+			return delay;
+		}
+		final Map<String, UsageStats> stats = share(snapshot);
+		final PrivacyOptions privacyOptions =
+			optionsService.getOptions(PrivacyOptions.class);
+
+		statusService
+			.showStatus("Uploading plugin usage.. thank you for contributing!");
+		// convert and filter stats to JSON, then upload to the server
+		final long buildStart = System.nanoTime();
+		final JSONObject json = json(stats, privacyOptions.isTimesCollected());
+		json.put(VERSION_KEY, VERSION);
+		if (metricsService != null) {
+			metricsService.recordBuild(System.nanoTime() - buildStart);
+		}
+		final String user = getAnonymizedUser();
+		final String url = getServerURL();
+		final JSONUploader uploader = new JSONUploader(json, log);
+		uploader.setBatchSize(batchSize);
+		uploader.addDeferred(deferred);
+		if (exporter != null) {
+			export(uploader.prepare(user));
+			if (metricsService != null) {
+				metricsService.recordDeferred(deferred.size());
+			}
+			return delay;
+		}
+		final long uploadStart = System.nanoTime();
+		final boolean success = uploader.upload(user, url);
+		final long uploadTime = System.nanoTime() - uploadStart;
+		pace(uploader);
+		final int bytes = uploader.getPayloadSize();
+		// NB: Record only uploads which sent something.
+		if (metricsService == null) return delay;
+		if (bytes > 0) metricsService.recordUpload(bytes, uploadTime, success);
+		metricsService.recordDeferred(deferred.size());
+		return delay;
+	}
+
+	/**
+	 * Gets the update service, looking it up on first use. Resolving update
+	 * sites loads the update site database, which is left until the first
+	 * upload rather than done while the context starts up.
+	 *
+	 * @return The update service, or null if the context has none.
+	 */
+	private UpdateService updateService() {
+		if (updateService == null) {
+			updateService = getContext().getService(UpdateService.class);
+		}
+		return updateService;
+	}
+
+	/** Schedules the next upload after the given number of milliseconds. */
+	private synchronized void schedule(final long millis) {
+		if (timer == null) return; // NB: Already disposed.
+		timer.schedule(new TimerTask() {
+
+			@Override
+			public void run() {
+				Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+				uploadUsageStatistics();
+				schedule(delay);
+			}
+		}, millis);
+	}
+
+	/** Gets the user's own shared segment file, for the given base path. */
+	private File sharedFile(final String path) {
+		final String user = DigestUtils.hex(DigestUtils.sha1(DigestUtils.bytes(
+			getAnonymizedUser())));
+		return new File(path + "." + user.substring(0, 16));
+	}
+
+	/**
+	 * Shares the given statistics via the shared segment, if any, returning
+	 * those which this process should upload. The leader uploads its own
+	 * statistics as they are, along with the counts harvested from the other
+	 * processes; the others publish their statistics to the segment, and
+	 * upload only those which did not fit in it.
+	 */
+	private Map<String, UsageStats> share(final Map<String, UsageStats> stats) {
+		if (segment == null) return stats;
+		try {
+			if (!segment.isLeader()) {
+				final Map<String, UsageStats> upload =
+					new HashMap<String, UsageStats>();
+				for (final UsageStats usage : segment.publish(stats.values())) {
+					upload.put(usage.getIdentifier(), usage);
+				}
+				return upload;
+			}
+		}
+		catch (final IOException exc) {
+			// NB: Nothing was published; upload our own statistics instead.
+			log.warn("Cannot publish shared usage statistics", exc);
+			return stats;
+		}
+		final Map<String, UsageStats> upload =
+			new HashMap<String, UsageStats>(stats);
+		try {
+			for (final UsageStats usage : segment.harvest()) {
+				final UsageStats own = upload.get(usage.getIdentifier());
+				if (own == null) upload.put(usage.getIdentifier(), usage);
+				else if (sameVersion(own, usage)) own.merge(usage);
+				else {
+					// NB: Keep other versions apart, as the server does.
+					upload.put(usage.getIdentifier() + "\n" + usage.getVersion(),
+						usage);
+				}
+			}
+		}
+		catch (final IOException exc) {
+			// NB: The counts stay in the segment, for the next harvest.
+			log.warn("Cannot harvest shared usage statistics", exc);
+		}
+		return upload;
+	}
+
+	private static boolean sameVersion(final UsageStats a, final UsageStats b) {
+		final String v = a.getVersion();
+		return v == null ? b.getVersion() == null : v.equals(b.getVersion());
+	}
+
+	/**
+	 * Writes the given batches to the export files, keeping them with the
+	 * deferred batches if they cannot be written.
+	 */
+	private void export(final List<JSONObject> batches) {
+		deferred.clear();
+		try {
+			exporter.export(batches, System.currentTimeMillis());
+		}
+		catch (final IOException exc) {
+			log.error("Cannot export usage statistics", exc);
+			deferred.addAll(batches);
+			final int excess = deferred.size() - MAX_DEFERRED;
+			if (excess > 0) deferred.subList(0, excess).clear();
+		}
+	}
+
+	/** Heeds the server's pacing directions from the given upload. */
+	private void pace(final JSONUploader uploader) {
+		if (uploader.getMaxBatch() > 0) {
+			// NB: The server may lower the batch size, but not raise it.
+			batchSize = Math.min(uploader.getMaxBatch(),
+				JSONUploader.DEFAULT_BATCH_SIZE);
+		}
+
+		deferred.clear();
+		deferred.addAll(uploader.getDeferred());
+		if (deferred.size() > MAX_DEFERRED) {
+			final List<JSONObject> dropped =
+				deferred.subList(0, deferred.size() - MAX_DEFERRED);
+			log.warn("Discarding " + dropped.size() +
+				" deferred batches of usage statistics");
+			dropped.clear();
+		}
+
+		final long seconds = uploader.getRetryAfter() >= 0 ? //
+			uploader.getRetryAfter() : uploader.getNextUpload();
+		delay = seconds < 0 ? RATE : //
+			Math.max(1000 * Math.min(seconds, MAX_RATE / 1000), MIN_RATE);
+	}
+
 	/** Gets the first known MAC address of this machine, or null if none. */
 	private byte[] macAddress() {
 		try {
@@ -197,11 +536,13 @@ public class DefaultUsageUploadService extends AbstractService implements
 	}
 
 	/** Builds a JSON object of aggregated usage statistics. */
-	private JSONObject json(final Map<String, UsageStats> stats) {
-		final JSONBuilder builder = new JSONBuilder(updateService, log);
-		for (final UsageStats usage : stats.values()) {
-			builder.append(usage);
-		}
+	private JSONObject json(final Map<String, UsageStats> stats,
+		final boolean timesIncluded)
+	{
+		final JSONBuilder builder = new JSONBuilder(updateService(), log);
+		builder.setTimesIncluded(timesIncluded);
+		builder.setParallel(true);
+		builder.appendAll(stats.values());
 		return builder.getJSON();
 	}
 
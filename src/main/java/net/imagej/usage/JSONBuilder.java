@@ -32,7 +32,13 @@
 package net.imagej.usage;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import net.imagej.updater.UpdateService;
 import net.imagej.updater.UpdateSite;
@@ -81,11 +87,20 @@ import org.scijava.util.FileUtils;
  *                 },
  *                 {
  *                     "id": "command:org.scijava.plugins.commands.debug.SystemInformation",
- *                     "count": 6
+ *                     "count": 6,
+ *                     "time_p50": 1150,
+ *                     "time_p99": 2559,
+ *                     "time_max": 2790
+ *                 },
+ *                 {
+ *                     "id": "command:net.imagej.plugins.commands.imglib.GaussianBlur",
+ *                     "count": 9,
+ *                     "outcomes": [9, 2, 1]
  *                 },
  *                 {
  *                     "id": "legacy:ij.plugin.filter.Filters(\"edge\")",
- *                     "count": 15
+ *                     "count": 15000,
+ *                     "estimated": true
  *                 }
  *             ]
  *         },
@@ -106,11 +121,34 @@ import org.scijava.util.FileUtils;
  *     ]
  * }
  * </pre>
+ * <p>
+ * Execution times (in microseconds) are included only when enabled via
+ * {@link #setTimesIncluded(boolean)}, as are the total CPU time (in
+ * microseconds) and allocated bytes of executions whose resource usage was
+ * measured.
+ * </p>
+ * <p>
+ * Statistics of objects whose executions were canceled or failed also carry
+ * their {@code outcomes}: the number of executions ending with each
+ * {@link UsageOutcome}, in order of declaration.
+ * </p>
+ * <p>
+ * Large tables of statistics can be built in parallel; see
+ * {@link #setParallel(boolean)}. The result is the same either way. Update
+ * sites are resolved serially regardless, since the {@link UpdateService}
+ * need not be thread-safe.
+ * </p>
  *
  * @author Curtis Rueden
  */
 public class JSONBuilder {
 
+	/** Minimum number of statistics worth building in parallel. */
+	private static final int PARALLEL_THRESHOLD = 4096;
+
+	/** Number of statistics built by each parallel task. */
+	private static final int CHUNK_SIZE = 1024;
+
 	private final UpdateService updateService;
 	private final LogService log;
 	private final JSONObject jsonRoot;
@@ -118,6 +156,9 @@ public class JSONBuilder {
 	private final HashMap<String, JSONObject> sites =
 		new HashMap<String, JSONObject>();
 
+	private boolean timesIncluded;
+	private boolean parallel;
+
 	public JSONBuilder(final UpdateService updateService, final LogService log) {
 		this.updateService = updateService;
 		this.log = log;
@@ -125,6 +166,22 @@ public class JSONBuilder {
 		jsonRoot.put("sites", new JSONArray());
 	}
 
+	/**
+	 * Sets whether to include module execution times and resource usage in the
+	 * JSON.
+	 */
+	public void setTimesIncluded(final boolean timesIncluded) {
+		this.timesIncluded = timesIncluded;
+	}
+
+	/**
+	 * Sets whether {@link #appendAll(Collection)} may build large tables of
+	 * statistics in parallel, on the common fork-join pool.
+	 */
+	public void setParallel(final boolean parallel) {
+		this.parallel = parallel;
+	}
+
 	/** Gets the JSON object. */
 	public JSONObject getJSON() {
 		return jsonRoot;
@@ -132,17 +189,60 @@ public class JSONBuilder {
 
 	/** Appends the given usage statistics to the JSON structure. */
 	public void append(final UsageStats usage) {
-		final File file = getFile(usage);
-		if (file == null) return;
-		final UpdateSite updateSite = updateService.getUpdateSite(file);
-		if (updateSite == null) return; // NB: No associated update site.
-		if (!updateSite.isOfficial()) return; // NB: Not a known update site.
-		final JSONObject jsonSite = jsonSite(updateSite);
-		appendStats(jsonSite, usage);
+		final UpdateSite updateSite = getUpdateSite(usage);
+		if (updateSite == null) return;
+		jsonSite(updateSite).append("stats", jsonUsage(usage));
+	}
+
+	/**
+	 * Appends all of the given usage statistics to the JSON structure, exactly
+	 * as if by calling {@link #append(UsageStats)} for each in turn.
+	 */
+	public void appendAll(final Collection<UsageStats> stats) {
+		if (!parallel || stats.size() < PARALLEL_THRESHOLD) {
+			for (final UsageStats usage : stats) {
+				append(usage);
+			}
+			return;
+		}
+		// resolve update sites serially, then build fragments of each chunk of
+		// statistics in parallel
+		final UsageStats[] array = stats.toArray(new UsageStats[stats.size()]);
+		final UpdateSite[] updateSites = new UpdateSite[array.length];
+		for (int i = 0; i < array.length; i++) {
+			updateSites[i] = getUpdateSite(array[i]);
+		}
+		final int chunks = (array.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		final SiteFragment[][] fragments = new SiteFragment[chunks][];
+		ForkJoinPool.commonPool().invoke(new BuildTask(array, updateSites,
+			fragments, 0, chunks));
+
+		// merge the fragments in chunk order, for a deterministic result
+		for (final SiteFragment[] chunk : fragments) {
+			for (final SiteFragment fragment : chunk) {
+				final JSONObject jsonSite = jsonSite(fragment.updateSite);
+				for (final JSONObject jsonUsage : fragment.stats) {
+					jsonSite.append("stats", jsonUsage);
+				}
+			}
+		}
 	}
 
 	// -- Helper methods --
 
+	/**
+	 * Gets the update site of the given {@link UsageStats}, or null if it does
+	 * not belong to an official update site.
+	 */
+	private UpdateSite getUpdateSite(final UsageStats usage) {
+		final File file = getFile(usage);
+		if (file == null) return null;
+		final UpdateSite updateSite = updateService.getUpdateSite(file);
+		if (updateSite == null) return null; // NB: No associated update site.
+		if (!updateSite.isOfficial()) return null; // NB: Not a known update site.
+		return updateSite;
+	}
+
 	/** Gets the location of the given {@link UsageStats} as a {@link File}. */
 	private File getFile(final UsageStats usage) {
 		final String url = usage.getLocation();
@@ -175,8 +275,8 @@ public class JSONBuilder {
 		return sites.get(siteURL);
 	}
 
-	/** Appends the specified usage statistics to the given JSON site object. */
-	private void appendStats(final JSONObject jsonSite, final UsageStats usage) {
+	/** Builds the JSON object of the specified usage statistics. */
+	private JSONObject jsonUsage(final UsageStats usage) {
 		final JSONObject jsonUsage = new JSONObject();
 		put(jsonUsage, "id", usage.getIdentifier());
 		put(jsonUsage, "name", usage.getName());
@@ -184,7 +284,26 @@ public class JSONBuilder {
 		put(jsonUsage, "description", usage.getDescription());
 		put(jsonUsage, "version", usage.getVersion());
 		jsonUsage.put("count", usage.getCount());
-		jsonSite.append("stats", jsonUsage);
+		if (usage.isEstimated()) jsonUsage.put("estimated", true);
+		if (usage.getError() > 0) jsonUsage.put("error", usage.getError());
+		if (timesIncluded && usage.getTimes() != null) {
+			jsonUsage.put("time_p50", usage.getTimeP50());
+			jsonUsage.put("time_p99", usage.getTimeP99());
+			jsonUsage.put("time_max", usage.getTimeMax());
+		}
+		if (timesIncluded && usage.getMeasuredCount() > 0) {
+			jsonUsage.put("measured", usage.getMeasuredCount());
+			jsonUsage.put("cpu_time", usage.getCpuTime() / 1000);
+			jsonUsage.put("allocated", usage.getAllocatedBytes());
+		}
+		if (usage.hasFailures()) {
+			final JSONArray outcomes = new JSONArray();
+			for (final UsageOutcome outcome : UsageOutcome.values()) {
+				outcomes.put(usage.getOutcomeCount(outcome));
+			}
+			jsonUsage.put("outcomes", outcomes);
+		}
+		return jsonUsage;
 	}
 
 	/**
@@ -196,4 +315,64 @@ public class JSONBuilder {
 		if (value == null) return;
 		json.put(key, value);
 	}
+
+	// -- Helper classes --
+
+	/** JSON objects of the statistics from one update site. */
+	private static class SiteFragment {
+
+		private final UpdateSite updateSite;
+		private final List<JSONObject> stats = new ArrayList<JSONObject>();
+
+		public SiteFragment(final UpdateSite updateSite) {
+			this.updateSite = updateSite;
+		}
+	}
+
+	/**
+	 * Builds the JSON objects of a range of chunks of statistics, grouped by
+	 * their already resolved update sites in order of first appearance.
+	 */
+	private class BuildTask extends RecursiveAction {
+
+		private final UsageStats[] stats;
+		private final UpdateSite[] updateSites;
+		private final SiteFragment[][] fragments;
+		private final int start, end;
+
+		public BuildTask(final UsageStats[] stats, final UpdateSite[] updateSites,
+			final SiteFragment[][] fragments, final int start, final int end)
+		{
+			this.stats = stats;
+			this.updateSites = updateSites;
+			this.fragments = fragments;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start > 1) {
+				final int mid = (start + end) >>> 1;
+				invokeAll(new BuildTask(stats, updateSites, fragments, start, mid),
+					new BuildTask(stats, updateSites, fragments, mid, end));
+				return;
+			}
+			final LinkedHashMap<String, SiteFragment> chunk =
+				new LinkedHashMap<String, SiteFragment>();
+			final int last = Math.min((start + 1) * CHUNK_SIZE, stats.length);
+			for (int i = start * CHUNK_SIZE; i < last; i++) {
+				final UpdateSite updateSite = updateSites[i];
+				if (updateSite == null) continue;
+				SiteFragment fragment = chunk.get(updateSite.getURL());
+				if (fragment == null) {
+					fragment = new SiteFragment(updateSite);
+					chunk.put(updateSite.getURL(), fragment);
+				}
+				fragment.stats.add(jsonUsage(stats[i]));
+			}
+			fragments[start] =
+				chunk.values().toArray(new SiteFragment[chunk.size()]);
+		}
+	}
 }
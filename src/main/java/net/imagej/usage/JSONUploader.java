@@ -37,6 +37,11 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -46,11 +51,44 @@ import org.scijava.util.DigestUtils;
 
 /**
  * Uploads a JSON string to a server.
+ * <p>
+ * Large uploads are split into batches of a bounded number of statistics,
+ * which are sent one after another over a reused connection. The batches
+ * share a {@code session} ID, by which the server reassembles them into a
+ * single event.
+ * </p>
+ * <p>
+ * Every batch also carries a random {@code batch_id} and a
+ * {@code content_hash} of its statistics. The server discards batches whose
+ * ID it has already stored, so a batch whose upload failed midway (e.g., by
+ * timing out) can safely be sent again: it is retried once straight away,
+ * then kept with the deferred batches.
+ * </p>
+ * <p>
+ * The server may pace its clients via optional fields of its response:
+ * </p>
+ * <ul>
+ * <li>{@code next_upload}: seconds until the client should next upload.</li>
+ * <li>{@code retry_after}: the batch was not processed; the client should
+ * send it again after this many seconds. HTTP status 429 or 503 with a
+ * {@code Retry-After} header means the same.</li>
+ * <li>{@code max_batch}: the most statistics the server accepts per batch.
+ * </li>
+ * </ul>
  *
  * @author Curtis Rueden
  */
 public class JSONUploader {
 
+	/** Default maximum number of statistics per uploaded batch. */
+	public static final int DEFAULT_BATCH_SIZE = 5000;
+
+	/** Milliseconds to wait for a connection to, or response from, the server. */
+	private static final int TIMEOUT = 60 * 1000;
+
+	/** Seconds to wait when the server defers without saying how long. */
+	private static final long DEFAULT_RETRY_AFTER = 60 * 60;
+
 	/** System properties to include in the uploaded usage report. */
 	private static final String[] SYSTEM_PROPERTIES = { "user.country",
 		"user.language", "user.timezone", "os.arch", "os.name", "os.version",
@@ -65,6 +103,21 @@ public class JSONUploader {
 
 	private final LogService log;
 
+	/** Maximum number of statistics per uploaded batch. */
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	/** Size in bytes of the most recently sent payload. */
+	private int payloadSize;
+
+	/** Batches to send before this upload's own, or left unsent by it. */
+	private final List<JSONObject> deferred = new ArrayList<JSONObject>();
+
+	/** Server-directed pacing, or -1 where the server gave no direction. */
+	private long nextUpload = -1, retryAfter = -1;
+
+	/** Server-directed maximum batch size, or 0 if none. */
+	private int maxBatch;
+
 	public JSONUploader(final JSONObject json, final LogService log) {
 		this.json = json;
 		this.log = log;
@@ -74,24 +127,175 @@ public class JSONUploader {
 	 * Sends the JSON string to the given URL, associated with the specified
 	 * anonymized user.
 	 *
+	 * @return true iff the statistics were uploaded and the server responded
+	 *         as expected; false if there was nothing to upload, or the upload
+	 *         failed.
 	 * @see UsageUploadService#getServerURL()
 	 * @see UsageUploadService#getAnonymizedUser()
 	 */
-	public void upload(final String user, final String url) {
-		if (!uploadNeeded()) return; // NB: No statistics.
-		json.put("user", user);
-		addSystemProperties();
-		try {
-			final String raw = upload(url);
-			handleResponse(raw);
+	public boolean upload(final String user, final String url) {
+		final List<JSONObject> batches = new ArrayList<JSONObject>(deferred);
+		deferred.clear();
+		if (uploadNeeded()) batches.addAll(batches());
+		if (batches.isEmpty()) return false; // NB: No statistics.
+		payloadSize = 0;
+		retryAfter = -1;
+		for (int b = 0; b < batches.size(); b++) {
+			final byte[] data = serialize(batches.get(b), user);
+			payloadSize += data.length;
+			final String raw;
+			try {
+				raw = send(data, url);
+			}
+			catch (final IOException exc) {
+				log.error("Cannot upload usage statistics", exc);
+				// NB: The batch may have been stored regardless. But the server
+				// discards duplicate batch IDs, so it is safe to send it again.
+				deferred.addAll(batches.subList(b, batches.size()));
+				return false;
+			}
+			if (raw != null && handleResponse(raw)) continue;
+			// NB: Whether the server deferred this batch or its response was not
+			// understood, keep the rest for later; resending them is safe.
+			deferred.addAll(batches.subList(b, batches.size()));
+			return false;
 		}
-		catch (final IOException exc) {
-			log.error("Cannot upload usage statistics", exc);
+		return true;
+	}
+
+	/**
+	 * Gets the batches which would be sent to the server: any deferred ones,
+	 * then this upload's own, each completed with the user and system
+	 * properties. The deferred batches are handed over rather than kept.
+	 *
+	 * @see UsageExporter
+	 */
+	public List<JSONObject> prepare(final String user) {
+		final List<JSONObject> batches = new ArrayList<JSONObject>(deferred);
+		deferred.clear();
+		if (uploadNeeded()) batches.addAll(batches());
+		for (final JSONObject batch : batches) {
+			batch.put("user", user);
+			addSystemProperties(batch);
+		}
+		return batches;
+	}
+
+	/** Gets the size in bytes of the payload sent, or 0 if none was sent. */
+	public int getPayloadSize() {
+		return payloadSize;
+	}
+
+	/** Sets the maximum number of statistics per uploaded batch. */
+	public void setBatchSize(final int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("Invalid batch size: " + batchSize);
 		}
+		this.batchSize = batchSize;
+	}
+
+	/** Gets the maximum number of statistics per uploaded batch. */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Adds batches deferred during a previous upload, to be sent ahead of this
+	 * upload's own statistics.
+	 */
+	public void addDeferred(final List<JSONObject> batches) {
+		deferred.addAll(batches);
+	}
+
+	/**
+	 * Gets the batches deferred during the upload, because the server asked
+	 * for them later or could not be reached.
+	 */
+	public List<JSONObject> getDeferred() {
+		return deferred;
+	}
+
+	/**
+	 * Gets the number of seconds until the next upload, as directed by the
+	 * server, or -1 if it gave no direction.
+	 */
+	public long getNextUpload() {
+		return nextUpload;
+	}
+
+	/**
+	 * Gets the number of seconds after which deferred batches should be sent
+	 * again, as directed by the server, or -1 if nothing was deferred.
+	 */
+	public long getRetryAfter() {
+		return retryAfter;
+	}
+
+	/**
+	 * Gets the maximum number of statistics per batch accepted by the server,
+	 * or 0 if it gave no limit.
+	 */
+	public int getMaxBatch() {
+		return maxBatch;
 	}
 
 	// -- Helper methods --
 
+	/**
+	 * Completes the JSON with the user and system properties, and converts it to
+	 * the bytes to be sent.
+	 */
+	byte[] serialize(final String user) {
+		return serialize(json, user);
+	}
+
+	/**
+	 * Splits the JSON into batches of at most {@link #getBatchSize()}
+	 * statistics each, splitting a site's statistics across batches as needed.
+	 */
+	List<JSONObject> batches() {
+		final JSONArray sitesArray = json.getJSONArray("sites");
+		int total = 0;
+		for (int s = 0; s < sitesArray.length(); s++) {
+			total += sitesArray.getJSONObject(s).getJSONArray("stats").length();
+		}
+		if (total <= batchSize) {
+			identify(json);
+			return Collections.singletonList(json);
+		}
+
+		final String session = UUID.randomUUID().toString();
+		final List<JSONObject> batches = new ArrayList<JSONObject>();
+		JSONObject batch = null;
+		int batchStats = 0;
+		for (int s = 0; s < sitesArray.length(); s++) {
+			final JSONObject site = sitesArray.getJSONObject(s);
+			final JSONArray stats = site.getJSONArray("stats");
+			JSONObject batchSite = null;
+			for (int i = 0; i < stats.length(); i++) {
+				if (batch == null || batchStats == batchSize) {
+					batch = batch(session);
+					batches.add(batch);
+					batchStats = 0;
+					batchSite = null;
+				}
+				if (batchSite == null) {
+					batchSite = new JSONObject();
+					batchSite.put("name", site.get("name"));
+					batchSite.put("url", site.get("url"));
+					batchSite.put("stats", new JSONArray());
+					batch.append("sites", batchSite);
+				}
+				batchSite.append("stats", stats.get(i));
+				batchStats++;
+			}
+		}
+		for (final JSONObject b : batches) {
+			identify(b);
+		}
+		return batches;
+	}
+
 	/** Determines whether there are any statistics to upload. */
 	private boolean uploadNeeded() {
 		final JSONArray sitesArray = jsonArray(json, "sites");
@@ -108,15 +312,50 @@ public class JSONUploader {
 		return false;
 	}
 
-	private void addSystemProperties() {
+	/**
+	 * Completes the given JSON with the user and system properties, and
+	 * converts it to the bytes to be sent.
+	 */
+	private byte[] serialize(final JSONObject target, final String user) {
+		target.put("user", user);
+		addSystemProperties(target);
+		return DigestUtils.bytes(target.toString());
+	}
+
+	/** Gives the batch a unique ID and a hash of its statistics, if needed. */
+	private void identify(final JSONObject batch) {
+		if (batch.has("batch_id")) return;
+		batch.put("batch_id", UUID.randomUUID().toString());
+		final String sites = batch.getJSONArray("sites").toString();
+		batch.put("content_hash", DigestUtils.hex(DigestUtils.sha1(DigestUtils
+			.bytes(sites))));
+	}
+
+	/**
+	 * Creates an empty batch of the given session, with all top-level fields
+	 * of the JSON (e.g., the usage version).
+	 */
+	private JSONObject batch(final String session) {
+		final JSONObject batch = new JSONObject();
+		final Iterator<?> keys = json.keys();
+		while (keys.hasNext()) {
+			final String key = (String) keys.next();
+			if (!key.equals("sites")) batch.put(key, json.get(key));
+		}
+		batch.put("session", session);
+		batch.put("sites", new JSONArray());
+		return batch;
+	}
+
+	private void addSystemProperties(final JSONObject target) {
 		for (final String key : SYSTEM_PROPERTIES) {
-			addSystemProperty(key);
+			addSystemProperty(target, key);
 		}
 	}
 
-	private void addSystemProperty(String key) {
+	private void addSystemProperty(final JSONObject target, String key) {
 		final String value = System.getProperty(key);
-		if (value != null) json.put(key.replaceAll("\\.", "_"), value);
+		if (value != null) target.put(key.replaceAll("\\.", "_"), value);
 	}
 
 	private JSONArray jsonArray(final JSONObject obj, final String key) {
@@ -126,6 +365,19 @@ public class JSONUploader {
 		return (JSONArray) child;
 	}
 
+	/** Uploads the JSON data, trying once more straight away if it fails. */
+	private String send(final byte[] data, final String urlSpec)
+		throws IOException
+	{
+		try {
+			return upload(data, urlSpec);
+		}
+		catch (final IOException exc) {
+			log.debug("Retrying usage statistics upload", exc);
+			return upload(data, urlSpec);
+		}
+	}
+
 	/**
 	 * Uploads the JSON data to a URL using POST.
 	 * <p>
@@ -133,15 +385,19 @@ public class JSONUploader {
 	 * href="http://stackoverflow.com/a/17181533">his code on Stack Overflow</a>.
 	 * </p>
 	 * 
-	 * @return The response from the web server.
+	 * @return The response from the web server, or null if it is shedding
+	 *         load.
 	 */
-	private String upload(final String urlSpec) throws IOException {
-		final byte[] data = DigestUtils.bytes(json.toString());
+	private String upload(final byte[] data, final String urlSpec)
+		throws IOException
+	{
 		final String contentLength = Integer.toString(data.length);
 
 		final URL url = new URL(urlSpec);
 		final HttpURLConnection connection =
 			(HttpURLConnection) url.openConnection();
+		connection.setConnectTimeout(TIMEOUT);
+		connection.setReadTimeout(TIMEOUT);
 		connection.setDoOutput(true);
 		connection.setDoInput(true);
 		connection.setRequestMethod("POST");
@@ -154,6 +410,14 @@ public class JSONUploader {
 		wr.write(data);
 		wr.close();
 
+		final int code = connection.getResponseCode();
+		if (code == 429 || code == HttpURLConnection.HTTP_UNAVAILABLE) {
+			retryAfter = seconds(connection.getHeaderField("Retry-After"));
+			log.info("Usage server busy; retrying in " + retryAfter + " seconds");
+			connection.disconnect();
+			return null;
+		}
+
 		 // retrieve response
 		final BufferedReader in =
 			new BufferedReader(new InputStreamReader(connection.getInputStream()));
@@ -164,24 +428,50 @@ public class JSONUploader {
 			response.append(line);
 			response.append("\n");
 		}
+		// NB: Closing the fully read stream, rather than disconnecting, returns
+		// the connection to the keep-alive cache for the next batch to reuse.
 		in.close();
 
-		// close the connection
-		connection.disconnect();
-
 		return response.toString();
 	}
 
 	/** Handles a response from the server. */
-	private void handleResponse(final String raw) {
-		// NB: For now, we just log the response, and any errors that occurred.
+	private boolean handleResponse(final String raw) {
 		try {
 			final JSONObject response = new JSONObject(raw);
+			if (response.has("next_upload")) {
+				nextUpload = response.getLong("next_upload");
+			}
+			if (response.has("max_batch")) {
+				maxBatch = response.getInt("max_batch");
+				// NB: The server may lower the batch size, but not raise it.
+				if (maxBatch > 0) batchSize = Math.min(batchSize, maxBatch);
+			}
+			if (response.has("retry_after")) {
+				retryAfter = Math.max(0, response.getLong("retry_after"));
+				log.info("Usage statistics deferred by server; retrying in " +
+					retryAfter + " seconds");
+				return false;
+			}
 			final String message = response.getString("message");
 			log.info("Uploaded usage statistics with response: " + message);
+			return true;
 		}
 		catch (final JSONException exc) {
 			log.error("Invalid response: " + raw, exc);
+			return false;
+		}
+	}
+
+	/** Parses a {@code Retry-After} header value given in seconds. */
+	private long seconds(final String value) {
+		if (value == null) return DEFAULT_RETRY_AFTER;
+		try {
+			return Math.max(0, Long.parseLong(value.trim()));
+		}
+		catch (final NumberFormatException exc) {
+			// NB: An HTTP date rather than seconds; not worth parsing.
+			return DEFAULT_RETRY_AFTER;
 		}
 	}
 
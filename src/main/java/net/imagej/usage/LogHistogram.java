@@ -0,0 +1,183 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2016 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.usage;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-memory histogram of non-negative values, with logarithmically sized
+ * buckets in the style of HdrHistogram.
+ * <p>
+ * Each power of two is divided into eight linear sub-buckets, so recorded
+ * values are resolved to within 12.5% of their magnitude. Recording is
+ * thread safe, lock free and allocation free.
+ * </p>
+ */
+public class LogHistogram {
+
+	/** Number of bits of each value resolved linearly within its power of two. */
+	private static final int SUB_BITS = 3;
+
+	/** Number of sub-buckets per power of two. */
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+
+	private final AtomicLongArray counts;
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Creates a histogram resolving values up to the given maximum. Larger
+	 * values are counted in the last bucket, but still reflected by
+	 * {@link #getMax()}.
+	 */
+	public LogHistogram(final long highestTrackableValue) {
+		counts = new AtomicLongArray(index(highestTrackableValue) + 1);
+	}
+
+	/** Records one occurrence of the given value. */
+	public void record(final long value) {
+		final long v = Math.max(value, 0);
+		counts.incrementAndGet(Math.min(index(v), counts.length() - 1));
+		raiseMax(v);
+	}
+
+	/** Gets the number of recorded values. */
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	/** Gets the largest recorded value, or 0 if none. */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Gets the value at the given percentile (0-100): the upper bound of the
+	 * bucket containing it, or 0 if no values have been recorded.
+	 */
+	public long getValueAtPercentile(final double percentile) {
+		final long count = getCount();
+		if (count == 0) return 0;
+		final double p = Math.min(Math.max(percentile, 0), 100);
+		final long rank = Math.max(1, (long) Math.ceil(p / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= rank) return Math.min(upperBound(i), getMax());
+		}
+		return getMax();
+	}
+
+	/**
+	 * Adds all values recorded by another histogram, which must have the same
+	 * highest trackable value.
+	 */
+	public void add(final LogHistogram other) {
+		final int n = Math.min(counts.length(), other.counts.length());
+		for (int i = 0; i < n; i++) {
+			final long c = other.counts.get(i);
+			if (c != 0) counts.addAndGet(i, c);
+		}
+		raiseMax(other.getMax());
+	}
+
+	/** Writes the recorded values compactly, as only the nonzero buckets. */
+	void write(final DataOutput out) throws IOException {
+		int nonzero = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			if (counts.get(i) != 0) nonzero++;
+		}
+		out.writeLong(max.get());
+		out.writeShort(nonzero);
+		for (int i = 0; i < counts.length() && nonzero > 0; i++) {
+			final long c = counts.get(i);
+			if (c == 0) continue;
+			out.writeShort(i);
+			out.writeLong(c);
+			nonzero--;
+		}
+	}
+
+	/** Adds values previously written by {@link #write(DataOutput)}. */
+	void read(final DataInput in) throws IOException {
+		final long v = in.readLong();
+		final int nonzero = in.readUnsignedShort();
+		for (int b = 0; b < nonzero; b++) {
+			final int i = in.readUnsignedShort();
+			counts.addAndGet(Math.min(i, counts.length() - 1), in.readLong());
+		}
+		raiseMax(v);
+	}
+
+	/** Discards all recorded values. */
+	public void reset() {
+		for (int i = 0; i < counts.length(); i++) {
+			counts.set(i, 0);
+		}
+		max.set(0);
+	}
+
+	// -- Helper methods --
+
+	/** Raises the recorded maximum to the given value, if larger. */
+	private void raiseMax(final long v) {
+		while (true) {
+			final long current = max.get();
+			if (v <= current || max.compareAndSet(current, v)) break;
+		}
+	}
+
+	/** Gets the index of the bucket holding the given non-negative value. */
+	private static int index(final long value) {
+		if (value < SUB_COUNT) return (int) value;
+		final int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		final int sub = (int) (value >>> (magnitude - SUB_BITS)) & (SUB_COUNT - 1);
+		return (magnitude - SUB_BITS + 1) * SUB_COUNT + sub;
+	}
+
+	/** Gets the largest value belonging to the given bucket. */
+	private static long upperBound(final int index) {
+		if (index < SUB_COUNT) return index;
+		final int magnitude = index / SUB_COUNT + SUB_BITS - 1;
+		final long sub = index % SUB_COUNT;
+		final int shift = magnitude - SUB_BITS;
+		return ((SUB_COUNT + sub + 1) << shift) - 1;
+	}
+
+}
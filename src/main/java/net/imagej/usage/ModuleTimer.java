@@ -0,0 +1,205 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2016 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.usage;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+import org.scijava.module.Module;
+
+/**
+ * Pairs the start and end of module executions on each thread, to measure how
+ * long they take and, optionally, how much CPU time and memory they use.
+ * <p>
+ * Executions are tracked per thread, since a module's execution events are
+ * published on the thread that runs it. Nested executions (i.e., modules which
+ * run other modules) are supported. Apart from the first few executions on
+ * each thread, no objects are allocated for timing. Measuring allocated bytes
+ * may allocate a little, depending on the JVM, and is included in the figure.
+ * </p>
+ */
+class ModuleTimer {
+
+	/** Maximum nesting depth tracked before stale executions are discarded. */
+	private static final int MAX_DEPTH = 64;
+
+	private final ThreadLocal<Frames> frames = new ThreadLocal<Frames>() {
+
+		@Override
+		protected Frames initialValue() {
+			return new Frames();
+		}
+	};
+
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private final com.sun.management.ThreadMXBean allocations =
+		allocationBean(threads);
+
+	private volatile boolean cpuMeasured;
+	private volatile boolean allocationsMeasured;
+
+	/**
+	 * Sets whether to measure CPU time and allocated bytes, to the extent the
+	 * JVM supports doing so.
+	 */
+	public void setResourcesMeasured(final boolean resourcesMeasured) {
+		cpuMeasured = resourcesMeasured && threads.isCurrentThreadCpuTimeSupported();
+		if (cpuMeasured && !threads.isThreadCpuTimeEnabled()) {
+			threads.setThreadCpuTimeEnabled(true);
+		}
+		allocationsMeasured = resourcesMeasured && allocations != null &&
+			allocations.isThreadAllocatedMemorySupported();
+		if (allocationsMeasured && !allocations.isThreadAllocatedMemoryEnabled()) {
+			allocations.setThreadAllocatedMemoryEnabled(true);
+		}
+	}
+
+	/** Gets whether CPU time or allocated bytes are being measured. */
+	public boolean isResourcesMeasured() {
+		return cpuMeasured || allocationsMeasured;
+	}
+
+	/** Notes that the given module is beginning execution. */
+	public void start(final Module module) {
+		final long cpu = cpuMeasured ? threads.getCurrentThreadCpuTime() : -1;
+		final long allocated = allocationsMeasured ? //
+			allocations.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+		frames.get().push(module, System.nanoTime(), cpu, allocated);
+	}
+
+	/**
+	 * Notes that the given module has completed execution.
+	 *
+	 * @return The measurement of the execution, or null if its start was not
+	 *         noted. The object is reused by subsequent calls on the same
+	 *         thread.
+	 */
+	public Measurement stop(final Module module) {
+		final long now = System.nanoTime();
+		final Frames f = frames.get();
+		final int i = f.pop(module);
+		if (i < 0) return null;
+		final Measurement m = f.measurement;
+		m.time = now - f.starts[i];
+		m.cpuTime = f.cpu[i] < 0 ? -1 : //
+			threads.getCurrentThreadCpuTime() - f.cpu[i];
+		m.allocatedBytes = f.allocated[i] < 0 ? -1 : //
+			allocations.getThreadAllocatedBytes(Thread.currentThread().getId()) -
+				f.allocated[i];
+		return m;
+	}
+
+	/** Notes that the given module ended without completing. */
+	public void discard(final Module module) {
+		frames.get().pop(module);
+	}
+
+	// -- Helper methods --
+
+	private static com.sun.management.ThreadMXBean allocationBean(
+		final ThreadMXBean bean)
+	{
+		try {
+			if (bean instanceof com.sun.management.ThreadMXBean) {
+				return (com.sun.management.ThreadMXBean) bean;
+			}
+		}
+		catch (final NoClassDefFoundError err) {
+			// NB: Not a JVM which can measure allocated bytes.
+		}
+		return null;
+	}
+
+	// -- Helper classes --
+
+	/** Resources used by one module execution, in nanoseconds and bytes. */
+	public static class Measurement {
+
+		/** Elapsed wall-clock time. */
+		public long time;
+
+		/** CPU time used by the executing thread, or -1 if not measured. */
+		public long cpuTime;
+
+		/** Bytes allocated by the executing thread, or -1 if not measured. */
+		public long allocatedBytes;
+	}
+
+	/** Stack of in-progress module executions on one thread. */
+	private static class Frames {
+
+		private final Measurement measurement = new Measurement();
+		private Module[] modules = new Module[4];
+		private long[] starts = new long[4];
+		private long[] cpu = new long[4];
+		private long[] allocated = new long[4];
+		private int depth;
+
+		private void push(final Module module, final long start,
+			final long startCPU, final long startAllocated)
+		{
+			if (depth == MAX_DEPTH) {
+				// NB: Executions whose end was never noted have piled up; drop them.
+				Arrays.fill(modules, null);
+				depth = 0;
+			}
+			if (depth == modules.length) {
+				modules = Arrays.copyOf(modules, 2 * depth);
+				starts = Arrays.copyOf(starts, 2 * depth);
+				cpu = Arrays.copyOf(cpu, 2 * depth);
+				allocated = Arrays.copyOf(allocated, 2 * depth);
+			}
+			modules[depth] = module;
+			starts[depth] = start;
+			cpu[depth] = startCPU;
+			allocated[depth] = startAllocated;
+			depth++;
+		}
+
+		/**
+		 * Pops the given module, along with any executions begun after it.
+		 *
+		 * @return The index of the module's frame, or -1 if not found.
+		 */
+		private int pop(final Module module) {
+			for (int i = depth - 1; i >= 0; i--) {
+				if (modules[i] != module) continue;
+				Arrays.fill(modules, i, depth, null);
+				depth = i;
+				return i;
+			}
+			return -1;
+		}
+	}
+
+}
@@ -0,0 +1,169 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2016 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.usage;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters of module executions by identifier and {@link UsageOutcome}.
+ * <p>
+ * Each identifier known to the dictionary owns a slot: one row of counters,
+ * one per outcome, packed into chunks of a few hundred slots each. Counting
+ * an outcome is thus a lookup in the dictionary plus one atomic addition,
+ * allocating nothing; a slot is allocated only the first time an identifier
+ * is seen. Like the table of statistics, the counters cover one period
+ * between snapshots, at the end of which they are replaced, then drained by
+ * {@link #drain(Map)}.
+ * </p>
+ */
+class OutcomeCounters {
+
+	/** Number of counters per slot. */
+	private static final int OUTCOMES = UsageOutcome.values().length;
+
+	/**
+	 * Estimated heap footprint of a slot in bytes, besides the details of its
+	 * object: its counters and dictionary entry.
+	 */
+	static final long SLOT_BYTES = 8 * OUTCOMES + 64;
+
+	/** Number of slots per chunk of counters. */
+	private static final int CHUNK_SLOTS = 256;
+
+	private final ConcurrentHashMap<String, Slot> slots =
+		new ConcurrentHashMap<String, Slot>();
+
+	/** Chunk into which new slots are packed. */
+	private AtomicLongArray chunk;
+
+	/** Number of slots used in the current chunk. */
+	private int used = CHUNK_SLOTS;
+
+	/**
+	 * Counts an outcome of the identified object, with the given weight (see
+	 * {@link UsageStats#increment(long)}).
+	 *
+	 * @return false if the identifier has no slot yet, so nothing was counted;
+	 *         see {@link #add}.
+	 */
+	public boolean increment(final String id, final UsageOutcome outcome,
+		final long weight)
+	{
+		final Slot slot = slots.get(id);
+		if (slot == null) return false;
+		slot.chunk.getAndAdd(slot.offset + outcome.ordinal(), weight);
+		return true;
+	}
+
+	/**
+	 * Adds a slot for the object of the given details, if it has none yet and
+	 * there is room, then counts an outcome of it.
+	 *
+	 * @param details Details of the object, retained to report its outcomes.
+	 * @param weight Weight of the counted outcome.
+	 * @param max Maximum number of slots, or 0 for no limit.
+	 * @return false if there was no room for another slot.
+	 */
+	public synchronized boolean add(final UsageStats details,
+		final UsageOutcome outcome, final long weight, final int max)
+	{
+		final String id = details.getIdentifier();
+		if (!slots.containsKey(id)) {
+			if (max > 0 && slots.size() >= max) return false;
+			if (used == CHUNK_SLOTS) {
+				chunk = new AtomicLongArray(CHUNK_SLOTS * OUTCOMES);
+				used = 0;
+			}
+			slots.put(id, new Slot(details, chunk, OUTCOMES * used++));
+		}
+		return increment(id, outcome, weight);
+	}
+
+	/** Gets the number of identifiers with a slot. */
+	public int size() {
+		return slots.size();
+	}
+
+	/**
+	 * Moves all counted outcomes into the given snapshot of statistics, adding
+	 * entries for objects with outcomes but no entry of their own.
+	 */
+	public void drain(final Map<String, UsageStats> snapshot) {
+		final long[] row = new long[OUTCOMES];
+		for (final Map.Entry<String, Slot> entry : slots.entrySet()) {
+			final Slot slot = entry.getValue();
+			boolean counted = false;
+			for (int o = 0; o < OUTCOMES; o++) {
+				row[o] = slot.chunk.getAndSet(slot.offset + o, 0);
+				if (row[o] != 0) counted = true;
+			}
+			if (!counted) continue;
+			UsageStats usage = snapshot.get(entry.getKey());
+			if (usage == null) {
+				usage = slot.emptyStats();
+				snapshot.put(entry.getKey(), usage);
+			}
+			usage.addOutcomes(row);
+		}
+	}
+
+	// -- Helper classes --
+
+	/** Location of one identifier's counters. */
+	private static class Slot {
+
+		private final UsageStats details;
+		private final AtomicLongArray chunk;
+		private final int offset;
+
+		public Slot(final UsageStats details, final AtomicLongArray chunk,
+			final int offset)
+		{
+			this.details = details;
+			this.chunk = chunk;
+			this.offset = offset;
+		}
+
+		/** Creates statistics of no usage, with the slot's details. */
+		public UsageStats emptyStats() {
+			final UsageStats usage = new UsageStats(details.getIdentifier(),
+				details.getLocation(), details.getVersion());
+			usage.setName(details.getName());
+			usage.setLabel(details.getLabel());
+			usage.setDescription(details.getDescription());
+			return usage;
+		}
+	}
+
+}
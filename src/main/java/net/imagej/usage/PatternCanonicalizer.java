@@ -0,0 +1,104 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2016 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.usage;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Canonicalizes identifiers by a list of precompiled regular expression
+ * rules, applied in order.
+ * <p>
+ * By default, the arguments of legacy command identifiers (e.g.,
+ * {@code legacy:ij.plugin.filter.Filters?edge}) are removed when they contain
+ * file paths or URLs, or are long, since such arguments vary from one use to
+ * the next.
+ * </p>
+ */
+public class PatternCanonicalizer implements UsageCanonicalizer {
+
+	/** Legacy command arguments containing a path separator. */
+	public static final String LEGACY_PATH_ARGS = "^(legacy:[^?]*)\\?.*[/\\\\].*$";
+
+	/** Legacy command arguments of 64 characters or more. */
+	public static final String LEGACY_LONG_ARGS = "^(legacy:[^?]*)\\?.{64,}$";
+
+	private final List<Rule> rules = new CopyOnWriteArrayList<Rule>();
+
+	/** Creates a canonicalizer with the default rules. */
+	public PatternCanonicalizer() {
+		this(true);
+	}
+
+	/** Creates a canonicalizer with or without the default rules. */
+	public PatternCanonicalizer(final boolean defaultRules) {
+		if (!defaultRules) return;
+		addRule(LEGACY_PATH_ARGS, "$1");
+		addRule(LEGACY_LONG_ARGS, "$1");
+	}
+
+	/**
+	 * Adds a rule replacing each match of the given regular expression with
+	 * the specified replacement, which may refer to captured groups.
+	 */
+	public void addRule(final String regex, final String replacement) {
+		rules.add(new Rule(Pattern.compile(regex), replacement));
+	}
+
+	// -- UsageCanonicalizer methods --
+
+	@Override
+	public String canonicalize(final String id) {
+		String result = id;
+		for (final Rule rule : rules) {
+			final Matcher m = rule.pattern.matcher(result);
+			if (m.find()) result = m.replaceAll(rule.replacement);
+		}
+		return result;
+	}
+
+	// -- Helper classes --
+
+	private static class Rule {
+
+		private final Pattern pattern;
+		private final String replacement;
+
+		private Rule(final Pattern pattern, final String replacement) {
+			this.pattern = pattern;
+			this.replacement = replacement;
+		}
+	}
+
+}
@@ -0,0 +1,448 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2016 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.usage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Memory-mapped segment through which the processes of one host pool their
+ * usage counts, so that a single elected process uploads them all.
+ * <p>
+ * The segment holds a dictionary region, assigning each identifier and
+ * version a slot, and a number of stripes: columns of counts, one per slot.
+ * Along with each count, the part of it which may be overestimated (see
+ * {@link UsageStats#getError()}) and the part of it which was estimated from
+ * sampled events are kept. Each process claims a stripe of its own, and adds
+ * its snapshots to it with plain writes to the mapping; as every column has a
+ * single writer, no atomic operations across processes are needed, and no
+ * system calls are made except to claim a slot for an identifier new to the
+ * process. A second set of columns records how much of each count has been
+ * harvested; it is written only by the leader, which sums the unharvested
+ * counts of all stripes for upload.
+ * </p>
+ * <p>
+ * Only counts are pooled: execution times, resource usage and outcomes of
+ * the statistics published to the segment are not carried through it.
+ * </p>
+ * <p>
+ * Stripes and leadership are claimed with file locks, which the operating
+ * system releases when a process exits; counts published by an exited process
+ * are still harvested, and its stripe may be claimed anew.
+ * </p>
+ */
+class SharedUsageSegment {
+
+	/** Default number of slots, i.e., distinct identifiers. */
+	public static final int DEFAULT_SLOTS = 4096;
+
+	/** Default number of stripes, i.e., concurrent processes. */
+	public static final int DEFAULT_STRIPES = 64;
+
+	private static final int MAGIC = 0x494a5553; // "IJUS"
+	private static final int VERSION = 2;
+
+	private static final int HEADER_BYTES = 64;
+	private static final int MAGIC_OFFSET = 0;
+	private static final int VERSION_OFFSET = 4;
+	private static final int SLOTS_OFFSET = 8;
+	private static final int STRIPES_OFFSET = 12;
+	private static final int DICTIONARY_SIZE_OFFSET = 16;
+	private static final int DICTIONARY_COUNT_OFFSET = 20;
+	private static final int DICTIONARY_END_OFFSET = 24;
+
+	/** Dictionary bytes per slot. */
+	private static final int ENTRY_BYTES = 128;
+
+	/** Bytes per slot and stripe: the count, error and estimated part. */
+	private static final int RECORD_BYTES = 24;
+
+	/**
+	 * Start of the byte ranges locked to coordinate processes. They lie beyond
+	 * the data, which is never locked itself.
+	 */
+	private static final long LOCK_BASE = 1L << 40;
+	private static final long LEADER_LOCK = LOCK_BASE;
+	private static final long DICTIONARY_LOCK = LOCK_BASE + 1;
+	private static final long STRIPE_LOCK = LOCK_BASE + 2;
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+
+	private final int slots;
+	private final int stripes;
+	private final int dictionarySize;
+
+	/** Stripe claimed by this process. */
+	private final int stripe;
+	private final FileLock stripeLock;
+
+	/** Leadership of the segment, or null if not (yet) the leader. */
+	private FileLock leaderLock;
+
+	/** Slot of each identifier and version read from the dictionary. */
+	private final HashMap<String, Integer> slotIds =
+		new HashMap<String, Integer>();
+
+	/**
+	 * Identifier, location and version of each slot read from the dictionary.
+	 */
+	private final List<String[]> entries = new ArrayList<String[]>();
+
+	/** Offset of the next dictionary entry to read. */
+	private int dictionaryPos;
+
+	public SharedUsageSegment(final File file) throws IOException {
+		this(file, DEFAULT_SLOTS, DEFAULT_STRIPES);
+	}
+
+	/**
+	 * Opens the segment in the given file, creating it with the given number of
+	 * slots and stripes if it does not exist yet. An existing segment keeps its
+	 * own dimensions.
+	 */
+	public SharedUsageSegment(final File file, final int slots,
+		final int stripes) throws IOException
+	{
+		this.file = file;
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		try {
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			final FileLock lock = lockDictionary();
+			try {
+				channel.read(header, 0);
+				if (header.getInt(MAGIC_OFFSET) != MAGIC) {
+					header.clear();
+					header.putInt(MAGIC_OFFSET, MAGIC);
+					header.putInt(VERSION_OFFSET, VERSION);
+					header.putInt(SLOTS_OFFSET, slots);
+					header.putInt(STRIPES_OFFSET, stripes);
+					header.putInt(DICTIONARY_SIZE_OFFSET, slots * ENTRY_BYTES);
+					header.putInt(DICTIONARY_COUNT_OFFSET, 0);
+					header.putInt(DICTIONARY_END_OFFSET, 0);
+					raf.setLength(size(slots, stripes, slots * ENTRY_BYTES));
+					channel.write(header, 0);
+				}
+			}
+			finally {
+				release(lock);
+			}
+			if (header.getInt(VERSION_OFFSET) != VERSION) {
+				throw new IOException("Unsupported shared usage segment version: " +
+					header.getInt(VERSION_OFFSET));
+			}
+			this.slots = header.getInt(SLOTS_OFFSET);
+			this.stripes = header.getInt(STRIPES_OFFSET);
+			dictionarySize = header.getInt(DICTIONARY_SIZE_OFFSET);
+			final long size = size(this.slots, this.stripes, dictionarySize);
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("Shared usage segment is too large: " + size);
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+			// claim a stripe of our own
+			int s = 0;
+			FileLock lock2 = null;
+			for (; s < this.stripes && lock2 == null; s++) {
+				lock2 = tryLock(STRIPE_LOCK + s);
+			}
+			if (lock2 == null) {
+				throw new IOException("No free stripe in shared usage segment: " +
+					file);
+			}
+			stripe = s - 1;
+			stripeLock = lock2;
+		}
+		catch (final IOException exc) {
+			raf.close();
+			throw exc;
+		}
+	}
+
+	/** Gets the file holding the segment. */
+	public File getFile() {
+		return file;
+	}
+
+	/** Gets the stripe claimed by this process. */
+	public int getStripe() {
+		return stripe;
+	}
+
+	/** Gets whether this process leads the segment, claiming it if free. */
+	public synchronized boolean isLeader() throws IOException {
+		if (leaderLock == null) leaderLock = tryLock(LEADER_LOCK);
+		return leaderLock != null;
+	}
+
+	/**
+	 * Adds the counts of the given statistics to this process's stripe.
+	 *
+	 * @return Statistics which could not be published, because the dictionary
+	 *         is full.
+	 */
+	public synchronized List<UsageStats> publish(
+		final Collection<UsageStats> stats) throws IOException
+	{
+		// assign slots to any identifiers new to this process
+		final List<UsageStats> unknown = new ArrayList<UsageStats>();
+		for (final UsageStats usage : stats) {
+			if (usage.getCount() > 0 && !slotIds.containsKey(key(usage))) {
+				unknown.add(usage);
+			}
+		}
+		if (!unknown.isEmpty()) {
+			final FileLock lock = lockDictionary();
+			try {
+				readDictionary();
+				for (final UsageStats usage : unknown) {
+					if (!slotIds.containsKey(key(usage))) addEntry(usage);
+				}
+			}
+			finally {
+				release(lock);
+			}
+		}
+
+		// NB: From here on, only the mapping is touched; nothing can fail.
+		final List<UsageStats> unpublished = new ArrayList<UsageStats>();
+		for (final UsageStats usage : stats) {
+			final long count = usage.getCount();
+			if (count == 0) continue;
+			final Integer slot = slotIds.get(key(usage));
+			if (slot == null) {
+				unpublished.add(usage);
+				continue;
+			}
+			final int pos = recordPos(stripe, slot);
+			addLong(pos, count);
+			addLong(pos + 8, usage.getError());
+			if (usage.isEstimated()) addLong(pos + 16, count);
+		}
+		return unpublished;
+	}
+
+	/**
+	 * Collects the counts published by all processes since the previous
+	 * harvest, if this process leads the segment.
+	 *
+	 * @return The harvested statistics, or null if another process leads.
+	 */
+	public synchronized List<UsageStats> harvest() throws IOException {
+		if (!isLeader()) return null;
+		final FileLock lock = lockDictionary();
+		try {
+			readDictionary();
+		}
+		finally {
+			release(lock);
+		}
+		final List<UsageStats> harvest = new ArrayList<UsageStats>();
+		for (int slot = 0; slot < entries.size(); slot++) {
+			long count = 0, error = 0, estimated = 0;
+			for (int s = 0; s < stripes; s++) {
+				final int pos = recordPos(s, slot);
+				final int harvestedPos = harvestedPos(s, slot);
+				count += harvest(pos, harvestedPos);
+				error += harvest(pos + 8, harvestedPos + 8);
+				estimated += harvest(pos + 16, harvestedPos + 16);
+			}
+			if (count == 0) continue;
+			final String[] entry = entries.get(slot);
+			final UsageStats usage = new UsageStats(entry[0], entry[1], entry[2]);
+			usage.add(count - error);
+			usage.inherit(error);
+			if (estimated > 0) usage.markEstimated();
+			harvest.add(usage);
+		}
+		return harvest;
+	}
+
+	/** Releases this process's stripe and leadership. */
+	public synchronized void close() throws IOException {
+		try {
+			if (leaderLock != null) leaderLock.release();
+			stripeLock.release();
+		}
+		finally {
+			leaderLock = null;
+			raf.close();
+		}
+	}
+
+	// -- Helper methods --
+
+	private static long size(final int slots, final int stripes,
+		final int dictionarySize)
+	{
+		return HEADER_BYTES + dictionarySize + 2L * RECORD_BYTES * slots * stripes;
+	}
+
+	private int recordPos(final int s, final int slot) {
+		return HEADER_BYTES + dictionarySize + RECORD_BYTES * (s * slots + slot);
+	}
+
+	private int harvestedPos(final int s, final int slot) {
+		return recordPos(stripes, 0) + RECORD_BYTES * (s * slots + slot);
+	}
+
+	private void addLong(final int pos, final long value) {
+		if (value != 0) buffer.putLong(pos, buffer.getLong(pos) + value);
+	}
+
+	/** Marks the given published value as harvested, returning the increase. */
+	private long harvest(final int pos, final int harvestedPos) {
+		final long value = buffer.getLong(pos);
+		final long increase = value - buffer.getLong(harvestedPos);
+		if (increase != 0) buffer.putLong(harvestedPos, value);
+		return increase;
+	}
+
+	/** Gets the dictionary key of the statistics' identifier and version. */
+	private static String key(final UsageStats usage) {
+		return key(usage.getIdentifier(), usage.getVersion());
+	}
+
+	private static String key(final String id, final String version) {
+		return version == null ? id : id + "\n" + version;
+	}
+
+	/**
+	 * Reads dictionary entries added since the previous read. The caller must
+	 * hold the dictionary lock.
+	 */
+	private void readDictionary() throws IOException {
+		final int count = buffer.getInt(DICTIONARY_COUNT_OFFSET);
+		while (entries.size() < count) {
+			final int pos = HEADER_BYTES + dictionaryPos;
+			final byte[] bytes = new byte[buffer.getShort(pos)];
+			for (int i = 0; i < bytes.length; i++) {
+				bytes[i] = buffer.get(pos + 2 + i);
+			}
+			final String[] entry = new String(bytes, "UTF-8").split("\n", -1);
+			for (int i = 1; i < entry.length; i++) {
+				if (entry[i].isEmpty()) entry[i] = null;
+			}
+			slotIds.put(key(entry[0], entry[2]), entries.size());
+			entries.add(entry);
+			dictionaryPos += 2 + bytes.length;
+		}
+	}
+
+	/**
+	 * Assigns the next slot to the given statistics, if there is room. The
+	 * caller must hold the dictionary lock, and have read the dictionary.
+	 */
+	private void addEntry(final UsageStats usage) throws IOException {
+		final String id = usage.getIdentifier();
+		final String location = usage.getLocation();
+		final String version = usage.getVersion();
+		if (id == null || id.indexOf('\n') >= 0) return;
+		if (location != null && location.indexOf('\n') >= 0) return;
+		if (version != null && version.indexOf('\n') >= 0) return;
+		final byte[] bytes = (id + "\n" + (location == null ? "" : location) +
+			"\n" + (version == null ? "" : version)).getBytes("UTF-8");
+		final int end = buffer.getInt(DICTIONARY_END_OFFSET);
+		if (entries.size() >= slots || bytes.length > Short.MAX_VALUE ||
+			end + 2 + bytes.length > dictionarySize)
+		{
+			return; // NB: The dictionary is full.
+		}
+		final int pos = HEADER_BYTES + end;
+		buffer.putShort(pos, (short) bytes.length);
+		for (int i = 0; i < bytes.length; i++) {
+			buffer.put(pos + 2 + i, bytes[i]);
+		}
+		// NB: Publish the entry only once it is complete.
+		buffer.putInt(DICTIONARY_END_OFFSET, end + 2 + bytes.length);
+		buffer.putInt(DICTIONARY_COUNT_OFFSET, entries.size() + 1);
+		readDictionary();
+	}
+
+	/**
+	 * Locks the dictionary against other processes. Within this process, the
+	 * lock is also exclusive, as file locks must not overlap within a process.
+	 */
+	private FileLock lockDictionary() throws IOException {
+		synchronized (SharedUsageSegment.class) {
+			while (true) {
+				try {
+					return channel.lock(DICTIONARY_LOCK, 1, false);
+				}
+				catch (final OverlappingFileLockException exc) {
+					// NB: Held by another segment of this process; wait our turn.
+					try {
+						SharedUsageSegment.class.wait();
+					}
+					catch (final InterruptedException exc2) {
+						throw new IOException(exc2);
+					}
+				}
+			}
+		}
+	}
+
+	private void release(final FileLock lock) throws IOException {
+		synchronized (SharedUsageSegment.class) {
+			try {
+				lock.release();
+			}
+			finally {
+				SharedUsageSegment.class.notifyAll();
+			}
+		}
+	}
+
+	/** Tries to lock the given byte, returning null if held elsewhere. */
+	private FileLock tryLock(final long position) throws IOException {
+		try {
+			return channel.tryLock(position, 1, false);
+		}
+		catch (final OverlappingFileLockException exc) {
+			return null; // NB: Held by another segment of this process.
+		}
+	}
+
+}
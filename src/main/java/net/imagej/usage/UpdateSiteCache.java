@@ -0,0 +1,122 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2016 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.usage;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.imagej.updater.UpdateService;
+import net.imagej.updater.UpdateSite;
+
+import org.scijava.util.FileUtils;
+
+/**
+ * Caches which update site, if any, each location belongs to, and thus
+ * whether usage of objects at that location is reportable.
+ * <p>
+ * As with {@link JSONBuilder}, only objects from official update sites are
+ * reportable.
+ * </p>
+ */
+class UpdateSiteCache {
+
+	/** Marker for locations which belong to no update site. */
+	private static final Object NONE = new Object();
+
+	private final UpdateService updateService;
+
+	/** Update site (or {@link #NONE}) of each location, by location URL. */
+	private final ConcurrentHashMap<String, Object> sites =
+		new ConcurrentHashMap<String, Object>();
+
+	public UpdateSiteCache(final UpdateService updateService) {
+		this.updateService = updateService;
+	}
+
+	/**
+	 * Gets whether usage of objects at the given location is reportable.
+	 * Locations which cannot be resolved are given the benefit of the doubt.
+	 */
+	public boolean isTrackable(final String location) {
+		if (location == null) return false;
+		final Object site = site(location);
+		if (site == null) return true; // NB: Unknown; decide at upload time.
+		return site != NONE && ((UpdateSite) site).isOfficial();
+	}
+
+	/**
+	 * Gets the name of the update site to which the given location belongs, or
+	 * null if it belongs to none or cannot be resolved.
+	 */
+	public String getSiteName(final String location) {
+		if (location == null) return null;
+		final Object site = site(location);
+		if (site == null || site == NONE) return null;
+		return ((UpdateSite) site).getName();
+	}
+
+	/** Forgets all cached update sites. */
+	public void clear() {
+		sites.clear();
+	}
+
+	// -- Helper methods --
+
+	/** Gets the cached update site of a location, resolving it if needed. */
+	private Object site(final String location) {
+		final Object cached = sites.get(location);
+		if (cached != null) return cached;
+		final Object site;
+		try {
+			site = resolve(location);
+		}
+		catch (final RuntimeException exc) {
+			return null;
+		}
+		sites.put(location, site);
+		return site;
+	}
+
+	private Object resolve(final String location) {
+		final File file;
+		try {
+			file = FileUtils.urlToFile(location);
+		}
+		catch (final IllegalArgumentException exc) {
+			return NONE;
+		}
+		if (file == null) return NONE;
+		final UpdateSite updateSite = updateService.getUpdateSite(file);
+		return updateSite == null ? NONE : updateSite;
+	}
+
+}
@@ -0,0 +1,196 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2016 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.usage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.json.JSONObject;
+
+/**
+ * JVM-wide aggregator of the usage statistics of every context, so that a JVM
+ * running many contexts uploads once per interval, from one scheduler thread.
+ * <p>
+ * Each context's {@link DefaultUsageUploadService} joins the aggregator rather
+ * than scheduling uploads of its own. Its table of statistics stays with the
+ * context, so {@link UsageService#getStats()} works as before; at each upload,
+ * the tables of all contexts are snapshotted and merged, and uploaded by the
+ * first member to have joined, whose pacing the aggregator follows. A member
+ * leaving hands over its remaining statistics to be uploaded by the others;
+ * the last member to leave uploads them itself.
+ * </p>
+ * <p>
+ * Uploads happen outside the aggregator's lock, so that contexts can join
+ * and leave while one is in flight.
+ * </p>
+ * @see DefaultUsageUploadService#JVM_WIDE_PROPERTY
+ */
+class UsageAggregator {
+
+	private static UsageAggregator instance;
+
+	/** Members, in order of joining; the first one uploads. */
+	private final List<Member> members = new ArrayList<Member>();
+
+	/** Statistics handed over by members which left. */
+	private Map<String, UsageStats> pending = new HashMap<String, UsageStats>();
+
+	private Timer timer;
+
+	/** Gets the aggregator of this JVM. */
+	public static synchronized UsageAggregator getInstance() {
+		if (instance == null) instance = new UsageAggregator();
+		return instance;
+	}
+
+	/** Adds a member, starting the scheduler if it is the first. */
+	public synchronized void join(final Member member) {
+		members.add(member);
+		if (timer != null) return;
+		timer = new Timer("imagej-usage-upload", true);
+		schedule(DefaultUsageUploadService.RATE);
+	}
+
+	/**
+	 * Removes a member, handing over its remaining statistics and deferred
+	 * batches; or, if it is the last member, stopping the scheduler and
+	 * uploading everything remaining.
+	 */
+	public void leave(final Member member) {
+		final Member heir;
+		Map<String, UsageStats> stats = null;
+		synchronized (this) {
+			if (!members.remove(member)) return;
+			if (member.isCollected()) merge(pending, member.snapshot());
+			if (members.isEmpty()) {
+				timer.cancel();
+				timer = null;
+				heir = null;
+				stats = pending;
+				pending = new HashMap<String, UsageStats>();
+			}
+			else heir = members.get(0);
+		}
+		// NB: Outside the lock, since the member may still be uploading.
+		if (heir != null) heir.adoptDeferred(member.takeDeferred());
+		else if (member.isCollected() && !stats.isEmpty()) member.upload(stats);
+	}
+
+	/** Gets the number of members. */
+	public synchronized int size() {
+		return members.size();
+	}
+
+	/**
+	 * Uploads the merged statistics of all members.
+	 *
+	 * @return Milliseconds until the next upload.
+	 */
+	public long upload() {
+		final Member uploader;
+		final Map<String, UsageStats> stats;
+		synchronized (this) {
+			if (members.isEmpty()) return DefaultUsageUploadService.RATE;
+			uploader = members.get(0);
+			if (!uploader.isCollected()) return DefaultUsageUploadService.RATE;
+			stats = collect();
+		}
+		return uploader.upload(stats);
+	}
+
+	// -- Helper methods --
+
+	/**
+	 * Snapshots the statistics of all members which collect them, merged with
+	 * those handed over by members which left.
+	 */
+	synchronized Map<String, UsageStats> collect() {
+		final Map<String, UsageStats> stats = pending;
+		pending = new HashMap<String, UsageStats>();
+		for (final Member member : members) {
+			if (member.isCollected()) merge(stats, member.snapshot());
+		}
+		return stats;
+	}
+
+	private synchronized void schedule(final long millis) {
+		if (timer == null) return; // NB: Every member has left.
+		timer.schedule(new TimerTask() {
+
+			@Override
+			public void run() {
+				Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+				schedule(upload());
+			}
+		}, millis);
+	}
+
+	private static void merge(final Map<String, UsageStats> stats,
+		final Map<String, UsageStats> more)
+	{
+		for (final UsageStats usage : more.values()) {
+			final UsageStats existing = stats.get(usage.getIdentifier());
+			if (existing == null) stats.put(usage.getIdentifier(), usage);
+			else existing.merge(usage);
+		}
+	}
+
+	// -- Helper classes --
+
+	/** A context's part in the aggregator. */
+	abstract static class Member {
+
+		/** Gets whether the context's privacy options allow collection. */
+		abstract boolean isCollected();
+
+		/** Gets the context's statistics, then clears them. */
+		abstract Map<String, UsageStats> snapshot();
+
+		/**
+		 * Uploads the given statistics.
+		 *
+		 * @return Milliseconds until the next upload, as paced by the server.
+		 */
+		abstract long upload(Map<String, UsageStats> stats);
+
+		/** Gets the batches deferred by the server, then forgets them. */
+		abstract List<JSONObject> takeDeferred();
+
+		/** Adds batches deferred by the server during another's upload. */
+		abstract void adoptDeferred(List<JSONObject> batches);
+	}
+
+}
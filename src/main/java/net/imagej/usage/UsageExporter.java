@@ -0,0 +1,159 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2016 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.usage;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONObject;
+import org.scijava.util.DigestUtils;
+
+/**
+ * Writes usage statistics to files instead of uploading them, for sites
+ * without a connection to the usage server.
+ * <p>
+ * Each batch is written as one line of JSON, exactly as it would have been
+ * uploaded, into a gzip-compressed file per export, named by its (UTC) time:
+ * {@code usage-yyyy-MM-dd-HHmmss-SSS.ndjson.gz}. Each file is written under
+ * a temporary name and then renamed, so an interrupted export leaves no file
+ * behind, and the files can be carried off and bulk imported by the server's
+ * {@code import.php} at leisure. Batches keep their {@code batch_id}, so
+ * importing a file twice stores it only once.
+ * </p>
+ */
+class UsageExporter {
+
+	/** Prefix of the names of export files. */
+	static final String PREFIX = "usage-";
+
+	/** Suffix of the names of export files. */
+	static final String SUFFIX = ".ndjson.gz";
+
+	/** Suffix of the names of export files being written. */
+	private static final String TMP_SUFFIX = ".tmp";
+
+	private final File dir;
+
+	public UsageExporter(final File dir) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create export directory: " + dir);
+		}
+		this.dir = dir;
+		// NB: Discard exports which were interrupted.
+		final File[] files = dir.listFiles();
+		if (files != null) for (final File file : files) {
+			if (file.getName().endsWith(TMP_SUFFIX)) file.delete();
+		}
+	}
+
+	/** Gets the directory to which statistics are exported. */
+	public File getDirectory() {
+		return dir;
+	}
+
+	/**
+	 * Writes the given batches to a new export file, stamping each with the
+	 * time of export.
+	 *
+	 * @return The file written, or null if there was nothing to export.
+	 */
+	public File export(final List<JSONObject> batches, final long time)
+		throws IOException
+	{
+		if (batches.isEmpty()) return null;
+		final File file = file(time);
+		// NB: Not named like an export file until complete.
+		final File tmp = new File(dir, file.getName().substring(0, file.getName()
+			.length() - SUFFIX.length()) + TMP_SUFFIX);
+		try {
+			write(tmp, batches, time);
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (final IOException exc) {
+			tmp.delete();
+			throw exc;
+		}
+		return file;
+	}
+
+	/**
+	 * Gets a new export file for the given time, numbered if one of that time
+	 * exists already.
+	 */
+	File file(final long time) {
+		final SimpleDateFormat format =
+			new SimpleDateFormat("yyyy-MM-dd-HHmmss-SSS");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		final String name = PREFIX + format.format(new Date(time));
+		File file = new File(dir, name + SUFFIX);
+		for (int n = 1; file.exists(); n++) {
+			file = new File(dir, name + "-" + n + SUFFIX);
+		}
+		return file;
+	}
+
+	// -- Helper methods --
+
+	/** Writes the given batches to the given file, stamped with the time. */
+	private void write(final File file, final List<JSONObject> batches,
+		final long time) throws IOException
+	{
+		final FileOutputStream fileOut = new FileOutputStream(file);
+		try {
+			final GZIPOutputStream out =
+				new GZIPOutputStream(new BufferedOutputStream(fileOut));
+			for (final JSONObject batch : batches) {
+				// NB: Stored with the export time, not the time of the import.
+				batch.put("exported", time / 1000);
+				out.write(DigestUtils.bytes(batch.toString()));
+				out.write('\n');
+			}
+			out.finish();
+			out.flush();
+			// NB: The files may well be carried off before the next export.
+			fileOut.getFD().sync();
+		}
+		finally {
+			fileOut.close();
+		}
+	}
+
+}
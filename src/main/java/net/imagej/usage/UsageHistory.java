@@ -0,0 +1,355 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2016 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.usage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent local history of usage counts, kept in a directory of
+ * fixed-width column files: the day (days since the epoch, UTC), the object's
+ * index in an identifier dictionary, and the count.
+ * <p>
+ * Each snapshot of the usage table is appended as one record per object.
+ * Queries read the columns through memory-mapped I/O, so that years of history
+ * can be analyzed without loading it onto the heap; only the dictionary is
+ * held in memory. Records are kept in day order, so queries for a range of
+ * days touch only the pages of that range.
+ * </p>
+ */
+class UsageHistory {
+
+	private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+	private static final String DAYS_FILE = "days.col";
+	private static final String IDS_FILE = "ids.col";
+	private static final String COUNTS_FILE = "counts.col";
+	private static final String DICTIONARY_FILE = "dictionary.txt";
+
+	private final File dir;
+
+	/** Identifiers, by dictionary index; null until the store is opened. */
+	private List<String> dictionary;
+
+	/** Dictionary index of each identifier. */
+	private final HashMap<String, Integer> indices =
+		new HashMap<String, Integer>();
+
+	/** Number of complete records in the store. */
+	private long records;
+
+	/** Day of the last record. */
+	private int lastDay = Integer.MIN_VALUE;
+
+	public UsageHistory(final File dir) {
+		this.dir = dir;
+	}
+
+	/** Gets the current day, in days since the epoch (UTC). */
+	public static int today() {
+		return (int) (System.currentTimeMillis() / DAY_MILLIS);
+	}
+
+	/** Gets the directory holding the store. */
+	public File getDirectory() {
+		return dir;
+	}
+
+	/** Gets the number of records in the store. */
+	public synchronized long size() throws IOException {
+		open();
+		return records;
+	}
+
+	/** Appends the counts of the given statistics, as of the given day. */
+	public synchronized void append(final int day,
+		final Collection<UsageStats> stats) throws IOException
+	{
+		open();
+		// NB: Keep records in day order, even if the clock goes backwards.
+		final int d = Math.max(day, lastDay);
+		final ByteArrayOutputStream newIds = new ByteArrayOutputStream();
+		final ByteBuffer days = ByteBuffer.allocate(4 * stats.size());
+		final ByteBuffer ids = ByteBuffer.allocate(4 * stats.size());
+		final ByteBuffer counts = ByteBuffer.allocate(8 * stats.size());
+		final List<String> added = new ArrayList<String>();
+		for (final UsageStats usage : stats) {
+			final long count = usage.getCount();
+			final String id = usage.getIdentifier();
+			if (count == 0 || id == null || id.indexOf('\n') >= 0) continue;
+			Integer index = indices.get(id);
+			if (index == null) {
+				index = dictionary.size() + added.size();
+				indices.put(id, index);
+				added.add(id);
+				newIds.write((id + "\n").getBytes("UTF-8"));
+			}
+			days.putInt(d);
+			ids.putInt(index);
+			counts.putLong(count);
+		}
+		final int n = days.position() / 4;
+		if (n == 0) return;
+		days.flip();
+		ids.flip();
+		counts.flip();
+		try {
+			// NB: Write the dictionary first, so that records never refer to
+			// identifiers which are missing. Torn columns are healed by open().
+			if (newIds.size() > 0) {
+				write(DICTIONARY_FILE, ByteBuffer.wrap(newIds.toByteArray()));
+			}
+			write(DAYS_FILE, days);
+			write(IDS_FILE, ids);
+			write(COUNTS_FILE, counts);
+		}
+		catch (final IOException exc) {
+			// NB: Reopen on next access, to resynchronize with the files.
+			dictionary = null;
+			throw exc;
+		}
+		dictionary.addAll(added);
+		records += n;
+		lastDay = d;
+	}
+
+	/**
+	 * Gets the total count of each object over the given range of days
+	 * (inclusive), most used first.
+	 */
+	public synchronized Map<String, Long> totals(final int fromDay,
+		final int toDay) throws IOException
+	{
+		open();
+		final Map<String, Long> totals = new HashMap<String, Long>();
+		if (records == 0) return totals;
+		final FileChannel dayChannel = channel(DAYS_FILE);
+		final FileChannel idChannel = channel(IDS_FILE);
+		final FileChannel countChannel = channel(COUNTS_FILE);
+		try {
+			final IntBuffer days = ints(dayChannel);
+			final IntBuffer ids = ints(idChannel);
+			final LongBuffer counts = longs(countChannel);
+			final long[] sums = new long[dictionary.size()];
+			for (int r = first(days, fromDay); r < records; r++) {
+				if (days.get(r) > toDay) break;
+				sums[ids.get(r)] += counts.get(r);
+			}
+			final List<Integer> order = new ArrayList<Integer>();
+			for (int i = 0; i < sums.length; i++) {
+				if (sums[i] > 0) order.add(i);
+			}
+			Collections.sort(order, new Comparator<Integer>() {
+
+				@Override
+				public int compare(final Integer i1, final Integer i2) {
+					return Long.compare(sums[i2], sums[i1]);
+				}
+			});
+			final Map<String, Long> sorted = new LinkedHashMap<String, Long>();
+			for (final int i : order) {
+				sorted.put(dictionary.get(i), sums[i]);
+			}
+			return sorted;
+		}
+		finally {
+			dayChannel.close();
+			idChannel.close();
+			countChannel.close();
+		}
+	}
+
+	/**
+	 * Gets the daily counts of the given object over the given range of days
+	 * (inclusive); element {@code i} of the result is the count on day
+	 * {@code fromDay + i}.
+	 */
+	public synchronized long[] daily(final String id, final int fromDay,
+		final int toDay) throws IOException
+	{
+		open();
+		final long[] daily = new long[Math.max(0, toDay - fromDay + 1)];
+		final Integer index = indices.get(id);
+		if (index == null || records == 0 || daily.length == 0) return daily;
+		final FileChannel dayChannel = channel(DAYS_FILE);
+		final FileChannel idChannel = channel(IDS_FILE);
+		final FileChannel countChannel = channel(COUNTS_FILE);
+		try {
+			final IntBuffer days = ints(dayChannel);
+			final IntBuffer ids = ints(idChannel);
+			final LongBuffer counts = longs(countChannel);
+			for (int r = first(days, fromDay); r < records; r++) {
+				final int day = days.get(r);
+				if (day > toDay) break;
+				if (ids.get(r) == index) daily[day - fromDay] += counts.get(r);
+			}
+			return daily;
+		}
+		finally {
+			dayChannel.close();
+			idChannel.close();
+			countChannel.close();
+		}
+	}
+
+	// -- Helper methods --
+
+	/**
+	 * Reads the dictionary and reconciles the columns, if not done already.
+	 * Columns left uneven by an interrupted append are truncated to the
+	 * records they have in common.
+	 */
+	private void open() throws IOException {
+		if (dictionary != null) return;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create history directory: " + dir);
+		}
+		final List<String> words = readDictionary();
+		long n = Math.min(length(DAYS_FILE) / 4, length(IDS_FILE) / 4);
+		n = Math.min(n, length(COUNTS_FILE) / 8);
+		// NB: Mapped buffers are indexed by int.
+		if (n > Integer.MAX_VALUE / 8) {
+			throw new IOException("History is too large: " + n + " records");
+		}
+		truncate(DAYS_FILE, 4 * n);
+		truncate(IDS_FILE, 4 * n);
+		truncate(COUNTS_FILE, 8 * n);
+		indices.clear();
+		for (int i = 0; i < words.size(); i++) {
+			indices.put(words.get(i), i);
+		}
+		records = n;
+		lastDay = Integer.MIN_VALUE;
+		if (n > 0) {
+			final FileChannel channel = channel(DAYS_FILE);
+			try {
+				lastDay = ints(channel).get((int) n - 1);
+			}
+			finally {
+				channel.close();
+			}
+		}
+		dictionary = words;
+	}
+
+	/** Reads the dictionary, dropping any partially written last entry. */
+	private List<String> readDictionary() throws IOException {
+		final File file = new File(dir, DICTIONARY_FILE);
+		final List<String> words = new ArrayList<String>();
+		if (!file.exists()) return words;
+		final byte[] bytes = Files.readAllBytes(file.toPath());
+		int start = 0;
+		for (int i = 0; i < bytes.length; i++) {
+			if (bytes[i] != '\n') continue;
+			words.add(new String(bytes, start, i - start, "UTF-8"));
+			start = i + 1;
+		}
+		if (start < bytes.length) truncate(DICTIONARY_FILE, start);
+		return words;
+	}
+
+	/** Gets the index of the first record on or after the given day. */
+	private int first(final IntBuffer days, final int day) {
+		int lo = 0, hi = (int) records;
+		while (lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (days.get(mid) < day) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	private IntBuffer ints(final FileChannel channel) throws IOException {
+		return channel.map(FileChannel.MapMode.READ_ONLY, 0, 4 * records)
+			.asIntBuffer();
+	}
+
+	private LongBuffer longs(final FileChannel channel) throws IOException {
+		return channel.map(FileChannel.MapMode.READ_ONLY, 0, 8 * records)
+			.asLongBuffer();
+	}
+
+	private FileChannel channel(final String name) throws IOException {
+		return new RandomAccessFile(new File(dir, name), "r").getChannel();
+	}
+
+	private long length(final String name) {
+		return new File(dir, name).length();
+	}
+
+	private void truncate(final String name, final long length)
+		throws IOException
+	{
+		final File file = new File(dir, name);
+		if (file.length() <= length) return;
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(length);
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	private void write(final String name, final ByteBuffer buffer)
+		throws IOException
+	{
+		final FileOutputStream out =
+			new FileOutputStream(new File(dir, name), true);
+		try {
+			final FileChannel channel = out.getChannel();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+}
@@ -0,0 +1,259 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2016 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.usage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Ordered index of a usage statistics table, answering top-N and prefix
+ * queries without copying or sorting the table.
+ * <p>
+ * The index is maintained incrementally: recording usage merely flags the
+ * entry as stale (see {@link #touch}), which costs next to nothing; each query
+ * then re-ranks only the entries flagged since the previous query, at
+ * O(log n) apiece, before walking the first k ranks.
+ * </p>
+ */
+class UsageIndex {
+
+	/** Update sites of indexed locations, or null if unknown. */
+	private final UpdateSiteCache sites;
+
+	/** Entries whose counts changed since they were last ranked. */
+	private final ConcurrentLinkedQueue<UsageStats> stale =
+		new ConcurrentLinkedQueue<UsageStats>();
+
+	// NB: The remaining fields are guarded by this object's monitor.
+
+	/** All ranked entries, most used first. */
+	private final TreeSet<Rank> ranks = new TreeSet<Rank>();
+
+	/** Ranked entries of each update site, by site name. */
+	private final HashMap<String, TreeSet<Rank>> siteRanks =
+		new HashMap<String, TreeSet<Rank>>();
+
+	/** Indexed entries, by identifier. */
+	private final TreeMap<String, UsageStats> ids =
+		new TreeMap<String, UsageStats>();
+
+	/** Current rank of each indexed entry. */
+	private final IdentityHashMap<UsageStats, Rank> current =
+		new IdentityHashMap<UsageStats, Rank>();
+
+	public UsageIndex(final UpdateSiteCache sites) {
+		this.sites = sites;
+	}
+
+	/**
+	 * Notes that the given entry is new or its count has changed. Safe to call
+	 * from any thread.
+	 */
+	public void touch(final UsageStats usage) {
+		if (usage.markStale()) stale.add(usage);
+	}
+
+	/** Gets the {@code n} most used entries of the table, most used first. */
+	public synchronized List<UsageStats> top(
+		final Map<String, UsageStats> table, final int n)
+	{
+		refresh(table);
+		return first(ranks, table, n);
+	}
+
+	/**
+	 * Gets the {@code n} most used entries of the table from the named update
+	 * site, most used first.
+	 */
+	public synchronized List<UsageStats> top(
+		final Map<String, UsageStats> table, final String site, final int n)
+	{
+		refresh(table);
+		final TreeSet<Rank> set = siteRanks.get(site);
+		if (set == null) return Collections.emptyList();
+		return first(set, table, n);
+	}
+
+	/**
+	 * Gets the entries of the table whose identifiers start with the given
+	 * prefix, in identifier order.
+	 */
+	public synchronized List<UsageStats> withPrefix(
+		final Map<String, UsageStats> table, final String prefix)
+	{
+		refresh(table);
+		final List<UsageStats> result = new ArrayList<UsageStats>();
+		List<UsageStats> gone = null;
+		for (final Map.Entry<String, UsageStats> entry : ids.tailMap(prefix)
+			.entrySet())
+		{
+			if (!entry.getKey().startsWith(prefix)) break;
+			final UsageStats usage = entry.getValue();
+			if (table.get(entry.getKey()) == usage) result.add(usage);
+			else {
+				if (gone == null) gone = new ArrayList<UsageStats>();
+				gone.add(usage);
+			}
+		}
+		if (gone != null) for (final UsageStats usage : gone) drop(usage);
+		return result;
+	}
+
+	/** Forgets all indexed entries, as when the table is replaced. */
+	public synchronized void clear() {
+		// NB: Stale entries of the old table are dropped by the next refresh.
+		ranks.clear();
+		siteRanks.clear();
+		ids.clear();
+		current.clear();
+	}
+
+	// -- Helper methods --
+
+	/** Re-ranks every entry flagged as stale. */
+	private void refresh(final Map<String, UsageStats> table) {
+		UsageStats usage;
+		while ((usage = stale.poll()) != null) {
+			// NB: Clear the flag first, so that concurrent updates are not lost.
+			usage.markFresh();
+			rank(usage, table);
+		}
+	}
+
+	/** Re-ranks the given entry according to its current count. */
+	private void rank(final UsageStats usage,
+		final Map<String, UsageStats> table)
+	{
+		final String id = usage.getIdentifier();
+		if (id == null || table.get(id) != usage) {
+			// NB: The entry was evicted, spilled or cleared.
+			drop(usage);
+			return;
+		}
+		final Rank old = current.get(usage);
+		final String site;
+		if (old != null) {
+			unlink(old);
+			site = old.site;
+		}
+		else {
+			// NB: An entry replaced under the same identifier is superseded.
+			final UsageStats prior = ids.put(id, usage);
+			if (prior != null && prior != usage) drop(prior);
+			site = sites == null ? null : sites.getSiteName(usage.getLocation());
+		}
+		final Rank rank = new Rank(usage, site);
+		current.put(usage, rank);
+		ranks.add(rank);
+		if (site != null) {
+			TreeSet<Rank> set = siteRanks.get(site);
+			if (set == null) {
+				set = new TreeSet<Rank>();
+				siteRanks.put(site, set);
+			}
+			set.add(rank);
+		}
+	}
+
+	/** Removes the given entry from the index. */
+	private void drop(final UsageStats usage) {
+		final Rank rank = current.remove(usage);
+		if (rank != null) unlink(rank);
+		final String id = usage.getIdentifier();
+		if (id != null && ids.get(id) == usage) ids.remove(id);
+	}
+
+	/** Removes the given rank from the ordered sets. */
+	private void unlink(final Rank rank) {
+		ranks.remove(rank);
+		if (rank.site == null) return;
+		final TreeSet<Rank> set = siteRanks.get(rank.site);
+		if (set == null) return;
+		set.remove(rank);
+		if (set.isEmpty()) siteRanks.remove(rank.site);
+	}
+
+	/** Gets the entries of the first {@code n} ranks still in the table. */
+	private List<UsageStats> first(final TreeSet<Rank> set,
+		final Map<String, UsageStats> table, final int n)
+	{
+		final List<UsageStats> result = new ArrayList<UsageStats>();
+		List<UsageStats> gone = null;
+		final Iterator<Rank> iter = set.iterator();
+		while (result.size() < n && iter.hasNext()) {
+			final UsageStats usage = iter.next().usage;
+			if (table.get(usage.getIdentifier()) == usage) result.add(usage);
+			else {
+				if (gone == null) gone = new ArrayList<UsageStats>();
+				gone.add(usage);
+			}
+		}
+		if (gone != null) for (final UsageStats usage : gone) drop(usage);
+		return result;
+	}
+
+	// -- Helper classes --
+
+	/**
+	 * An entry's place in the ranking: its count as of when it was ranked. Ties
+	 * are broken by identifier, which is unique within the index.
+	 */
+	private static class Rank implements Comparable<Rank> {
+
+		private final UsageStats usage;
+		private final String id;
+		private final long count;
+		private final String site;
+
+		public Rank(final UsageStats usage, final String site) {
+			this.usage = usage;
+			id = usage.getIdentifier();
+			count = usage.getCount();
+			this.site = site;
+		}
+
+		@Override
+		public int compareTo(final Rank that) {
+			if (count != that.count) return count > that.count ? -1 : 1;
+			return id.compareTo(that.id);
+		}
+	}
+
+}
@@ -0,0 +1,90 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2016 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.usage;
+
+import org.scijava.service.SciJavaService;
+
+/**
+ * Interface for service that tracks the health and cost of the usage
+ * statistics subsystem itself.
+ * <p>
+ * The same metrics are also published as a JMX {@link UsageMetricsMBean}.
+ * </p>
+ */
+public interface UsageMetricsService extends SciJavaService {
+
+	/** Gets the total number of usage increments recorded. */
+	long getIncrementCount();
+
+	/** Gets the recent rate of usage increments, per second. */
+	double getIncrementRate();
+
+	/** Gets the number of entries in the table of usage statistics. */
+	int getTableSize();
+
+	/** Gets an estimate of the heap retained by the usage statistics table. */
+	long getRetainedBytes();
+
+	/**
+	 * Gets the milliseconds elapsed since the last successful upload, or -1 if
+	 * there has not been one yet.
+	 */
+	long getMillisSinceLastUpload();
+
+	/** Gets the number of successful uploads. */
+	long getUploadCount();
+
+	/** Gets the number of failed uploads. */
+	long getFailureCount();
+
+	/** Gets the number of batches currently deferred for sending again. */
+	int getDeferredCount();
+
+	/** Gets the histogram of JSON build times, in nanoseconds. */
+	LogHistogram getBuildTimes();
+
+	/** Gets the histogram of uploaded payload sizes, in bytes. */
+	LogHistogram getPayloadSizes();
+
+	/** Gets the histogram of upload latencies, in nanoseconds. */
+	LogHistogram getUploadLatencies();
+
+	/** Records the time taken to build one JSON payload. */
+	void recordBuild(long nanos);
+
+	/** Records the outcome of one upload attempt. */
+	void recordUpload(long bytes, long nanos, boolean success);
+
+	/** Records the number of batches deferred after an upload attempt. */
+	void recordDeferred(int batches);
+
+}
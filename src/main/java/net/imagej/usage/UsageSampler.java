@@ -0,0 +1,120 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2016 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.usage;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which usage events to record, so that the cost of bookkeeping stays
+ * bounded at extreme event rates.
+ * <p>
+ * By default, every event is recorded. With a fixed sampling rate of N, one
+ * event in N is recorded, chosen at random. With a target rate, N adapts once
+ * per second so that roughly the target number of events per second are
+ * recorded. Each recorded event carries a weight of N, so that weighted counts
+ * estimate the true counts.
+ * </p>
+ */
+class UsageSampler {
+
+	/** Interval at which the sampling rate adapts: one second. */
+	private static final long WINDOW = 1000L * 1000 * 1000;
+
+	/** Current sampling rate: one event in this many is recorded. */
+	private volatile int rate = 1;
+
+	/** Target recorded events per second, or 0 for a fixed rate. */
+	private volatile long target;
+
+	private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+	private final AtomicLong windowSampled = new AtomicLong();
+
+	/** Sets a fixed sampling rate, disabling adaptive sampling. */
+	public void setRate(final int rate) {
+		if (rate < 1) throw new IllegalArgumentException("Invalid rate: " + rate);
+		this.target = 0;
+		this.rate = rate;
+	}
+
+	/** Gets the current sampling rate. */
+	public int getRate() {
+		return rate;
+	}
+
+	/**
+	 * Sets the target number of recorded events per second, enabling adaptive
+	 * sampling; or 0 to stop adapting.
+	 */
+	public void setTarget(final long target) {
+		if (target < 0) {
+			throw new IllegalArgumentException("Invalid target: " + target);
+		}
+		this.target = target;
+		windowSampled.set(0);
+		windowStart.set(System.nanoTime());
+	}
+
+	/** Gets the target number of recorded events per second, or 0 if none. */
+	public long getTarget() {
+		return target;
+	}
+
+	/**
+	 * Decides whether to record an event.
+	 *
+	 * @return The event's weight: 0 to skip it, or else the sampling rate.
+	 */
+	public int sample() {
+		final int n = rate;
+		if (n > 1 && ThreadLocalRandom.current().nextInt(n) != 0) return 0;
+		if (target > 0) adapt(n);
+		return n;
+	}
+
+	// -- Helper methods --
+
+	/** Adjusts the sampling rate once per window, based on observed events. */
+	private void adapt(final int n) {
+		final long sampled = windowSampled.incrementAndGet();
+		final long start = windowStart.get();
+		final long now = System.nanoTime();
+		final long elapsed = now - start;
+		if (elapsed < WINDOW || !windowStart.compareAndSet(start, now)) return;
+		windowSampled.set(0);
+		final long t = target;
+		if (t <= 0) return;
+		final double events = (double) sampled * n * WINDOW / elapsed;
+		rate = (int) Math.max(1, Math.min(Integer.MAX_VALUE, Math.ceil(events / t)));
+	}
+
+}
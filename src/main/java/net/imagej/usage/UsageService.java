@@ -31,6 +31,10 @@
 
 package net.imagej.usage;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 
 import org.scijava.service.SciJavaService;
@@ -48,10 +52,96 @@ public interface UsageService extends SciJavaService {
 	/** Clears the table of usage statistics. */
 	void clearStats();
 
+	/**
+	 * Gets all usage statistics recorded since they were last cleared, then
+	 * clears them. Unlike {@link #getStats()}, the result includes any
+	 * statistics held outside of the table (e.g., spilled to disk).
+	 */
+	default Map<String, UsageStats> snapshotStats() {
+		final Map<String, UsageStats> stats = getStats();
+		clearStats();
+		return stats;
+	}
+
+	/** Gets the statistics of the {@code n} most used objects, most used first. */
+	default List<UsageStats> getMostUsed(final int n) {
+		final List<UsageStats> stats =
+			new ArrayList<UsageStats>(getStats().values());
+		Collections.sort(stats, new Comparator<UsageStats>() {
+
+			@Override
+			public int compare(final UsageStats s1, final UsageStats s2) {
+				return Long.compare(s2.getCount(), s1.getCount());
+			}
+		});
+		return stats.size() > n ? stats.subList(0, n) : stats;
+	}
+
+	/**
+	 * Gets the statistics of the {@code n} most used objects from the named
+	 * update site, most used first. The default implementation does not know
+	 * update sites, and so finds none.
+	 */
+	default List<UsageStats> getMostUsed(final String updateSite, final int n) {
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Gets the statistics of objects whose identifiers start with the given
+	 * prefix, in identifier order.
+	 */
+	default List<UsageStats> getUsageByPrefix(final String prefix) {
+		final List<UsageStats> stats = new ArrayList<UsageStats>();
+		for (final UsageStats usage : getStats().values()) {
+			if (usage.getIdentifier().startsWith(prefix)) stats.add(usage);
+		}
+		Collections.sort(stats, new Comparator<UsageStats>() {
+
+			@Override
+			public int compare(final UsageStats s1, final UsageStats s2) {
+				return s1.getIdentifier().compareTo(s2.getIdentifier());
+			}
+		});
+		return stats;
+	}
+
+	/**
+	 * Gets the total usage count of each object over the given range of days
+	 * (inclusive, in days since the epoch), from the local usage history, most
+	 * used first. The default implementation keeps no history, and so finds
+	 * none.
+	 */
+	default Map<String, Long> getUsageHistory(final int fromDay,
+		final int toDay)
+	{
+		return Collections.emptyMap();
+	}
+
+	/**
+	 * Gets the daily usage counts of the object with the given identifier over
+	 * the given range of days (inclusive, in days since the epoch), from the
+	 * local usage history. Element {@code i} of the result is the count on day
+	 * {@code fromDay + i}. The default implementation keeps no history, and so
+	 * finds only zeroes.
+	 */
+	default long[] getUsageHistory(final String id, final int fromDay,
+		final int toDay)
+	{
+		return new long[Math.max(0, toDay - fromDay + 1)];
+	}
+
 	/** Gets the given object's usage statistics. */
 	UsageStats getUsage(Object o);
 
 	/** Increments the given object's usage count. */
 	void increment(Object o);
 
+	/**
+	 * Gets the total number of increments since the service was created. The
+	 * default implementation does not count them, and so finds none.
+	 */
+	default long getIncrementCount() {
+		return 0;
+	}
+
 }
@@ -0,0 +1,117 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2016 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.usage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact on-disk segment holding usage statistics spilled out of memory.
+ * <p>
+ * Statistics are appended to a temporary file as they are spilled, and read
+ * back all at once when drained. The same object may be spilled more than
+ * once; it is up to the caller to merge the drained statistics.
+ * </p>
+ */
+class UsageSpill {
+
+	/** Buffer holding one record, so that failed writes leave no trace. */
+	private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+
+	private File file;
+	private DataOutputStream out;
+	private int size;
+
+	/** Appends the given statistics to the segment. */
+	public void write(final UsageStats usage) throws IOException {
+		if (out == null) {
+			file = File.createTempFile("imagej-usage-", ".spill");
+			file.deleteOnExit();
+			out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file)));
+		}
+		record.reset();
+		usage.write(new DataOutputStream(record));
+		record.writeTo(out);
+		size++;
+	}
+
+	/** Gets the number of statistics in the segment. */
+	public int size() {
+		return size;
+	}
+
+	/** Reads back all statistics in the segment, then discards it. */
+	public List<UsageStats> drain() throws IOException {
+		final List<UsageStats> spilled = new ArrayList<UsageStats>(size);
+		if (out == null) return spilled;
+		out.close();
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(
+			new FileInputStream(file)));
+		try {
+			for (int i = 0; i < size; i++) {
+				spilled.add(UsageStats.read(in));
+			}
+		}
+		finally {
+			in.close();
+			discard();
+		}
+		return spilled;
+	}
+
+	/** Discards all statistics in the segment. */
+	public void discard() {
+		if (out != null) {
+			try {
+				out.close();
+			}
+			catch (final IOException exc) {
+				// NB: The file is deleted regardless.
+			}
+		}
+		if (file != null) file.delete();
+		file = null;
+		out = null;
+		size = 0;
+	}
+
+}
@@ -31,14 +31,26 @@
 
 package net.imagej.usage;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
 import org.scijava.AbstractBasicDetails;
 import org.scijava.BasicDetails;
 import org.scijava.Identifiable;
 import org.scijava.Locatable;
 import org.scijava.Versioned;
+import org.scijava.util.DigestUtils;
 
 /**
  * Data structure storing usage statistics for a particular identifier.
+ * <p>
+ * Counts and execution times may be recorded concurrently from multiple
+ * threads.
+ * </p>
  * 
  * @author Curtis Rueden
  */
@@ -55,8 +67,66 @@ public class UsageStats extends AbstractBasicDetails implements Identifiable,
 	/** The object's version. */
 	private String version;
 
+	/** Largest tracked execution time: one day's worth of microseconds. */
+	private static final long MAX_TIME = 24L * 60 * 60 * 1000 * 1000;
+
+	/** Rough per-entry overhead of the table: map entry, stats object, etc. */
+	private static final long ENTRY_BYTES = 120;
+
+	/** Rough overhead of each string field, excluding its characters. */
+	private static final long STRING_BYTES = 40;
+
+	/** Rough size of an execution time histogram. */
+	static final long HISTOGRAM_BYTES = 2300;
+
+	private static final AtomicLongFieldUpdater<UsageStats> COUNT =
+		AtomicLongFieldUpdater.newUpdater(UsageStats.class, "count");
+
+	private static final AtomicLongFieldUpdater<UsageStats> CPU_TIME =
+		AtomicLongFieldUpdater.newUpdater(UsageStats.class, "cpuTime");
+
+	private static final AtomicLongFieldUpdater<UsageStats> ALLOCATED_BYTES =
+		AtomicLongFieldUpdater.newUpdater(UsageStats.class, "allocatedBytes");
+
+	private static final AtomicLongFieldUpdater<UsageStats> MEASURED_COUNT =
+		AtomicLongFieldUpdater.newUpdater(UsageStats.class, "measuredCount");
+
+	private static final AtomicIntegerFieldUpdater<UsageStats> STALE =
+		AtomicIntegerFieldUpdater.newUpdater(UsageStats.class, "stale");
+
+	private static final AtomicReferenceFieldUpdater<UsageStats, LogHistogram> TIMES =
+		AtomicReferenceFieldUpdater.newUpdater(UsageStats.class,
+			LogHistogram.class, "times");
+
 	/** Number of times the object was used. */
-	private long count;
+	private volatile long count;
+
+	/** Histogram of execution times in microseconds, or null if none yet. */
+	private volatile LogHistogram times;
+
+	/** Total CPU time of measured executions, in nanoseconds. */
+	private volatile long cpuTime;
+
+	/** Total bytes allocated by measured executions. */
+	private volatile long allocatedBytes;
+
+	/** Number of executions whose resource usage was measured. */
+	private volatile long measuredCount;
+
+	/** Whether the count is an estimate, extrapolated from sampled events. */
+	private volatile boolean estimated;
+
+	/** Upper bound on how much the count may overestimate the true count. */
+	private volatile long error;
+
+	/** Counts by {@link UsageOutcome}, or null if none were drained in. */
+	private volatile long[] outcomes;
+
+	/** Usage count as of the previous sweep of the table for cold entries. */
+	long sweptCount;
+
+	/** Whether the count changed since the entry was last ranked (1) or not. */
+	private volatile int stale;
 
 	/**
 	 * Creates usage statistics for the given object. Note that while several
@@ -64,17 +134,33 @@ public class UsageStats extends AbstractBasicDetails implements Identifiable,
 	 * is retained to the object itself.
 	 */
 	public UsageStats(final Object o) {
+		this(o, o instanceof Identifiable ? ((Identifiable) o).getIdentifier()
+			: null);
+	}
+
+	/**
+	 * Creates usage statistics for the given object, under the specified
+	 * identifier rather than the object's own (e.g., a canonical form of it).
+	 */
+	public UsageStats(final Object o, final String id) {
 		if (o instanceof BasicDetails) {
 			final BasicDetails basicDetails = (BasicDetails) o;
 			setName(basicDetails.getName());
 			setLabel(basicDetails.getLabel());
 			setDescription(basicDetails.getDescription());
 		}
-		id = o instanceof Identifiable ? ((Identifiable) o).getIdentifier() : null;
+		this.id = id;
 		url = o instanceof Locatable ? ((Locatable) o).getLocation() : null;
 		version = o instanceof Versioned ? ((Versioned) o).getVersion() : null;
 	}
 
+	/** Creates empty usage statistics with the given details. */
+	UsageStats(final String id, final String url, final String version) {
+		this.id = id;
+		this.url = url;
+		this.version = version;
+	}
+
 	/** Gets the number of times the object has been used. */
 	public long getCount() {
 		return count;
@@ -82,7 +168,217 @@ public class UsageStats extends AbstractBasicDetails implements Identifiable,
 
 	/** Increment the object's usage count. */
 	public void increment() {
-		count++;
+		COUNT.incrementAndGet(this);
+	}
+
+	/**
+	 * Increments the object's usage count by the given weight, as for an event
+	 * sampled at a rate of one in {@code weight}. Counts incremented by a weight
+	 * greater than one are flagged as estimated.
+	 */
+	public void increment(final long weight) {
+		if (weight > 1 && !estimated) estimated = true;
+		COUNT.addAndGet(this, weight);
+	}
+
+	/** Adds to the usage count, without flagging it as estimated. */
+	void add(final long uses) {
+		COUNT.addAndGet(this, uses);
+	}
+
+	/** Flags the usage count as estimated. */
+	void markEstimated() {
+		estimated = true;
+	}
+
+	/** Gets whether the usage count is an estimate based on sampled events. */
+	public boolean isEstimated() {
+		return estimated;
+	}
+
+	/**
+	 * Gets the maximum amount by which the usage count may exceed the true
+	 * count, as when the statistics table has limited capacity. Zero for exact
+	 * counts.
+	 */
+	public long getError() {
+		return error;
+	}
+
+	/**
+	 * Assumes that up to the given number of uses were previously counted but
+	 * then forgotten: the count is raised by that amount, which also bounds its
+	 * error.
+	 */
+	void inherit(final long forgotten) {
+		error += forgotten;
+		COUNT.addAndGet(this, forgotten);
+	}
+
+	/** Records one execution time of the object, in microseconds. */
+	public void recordTime(final long micros) {
+		times().record(micros);
+	}
+
+	/**
+	 * Gets the histogram of the object's execution times in microseconds, or
+	 * null if none were recorded.
+	 */
+	public LogHistogram getTimes() {
+		return times;
+	}
+
+	/** Gets the median execution time in microseconds, or 0 if none. */
+	public long getTimeP50() {
+		final LogHistogram histogram = times;
+		return histogram == null ? 0 : histogram.getValueAtPercentile(50);
+	}
+
+	/** Gets the 99th percentile execution time in microseconds, or 0 if none. */
+	public long getTimeP99() {
+		final LogHistogram histogram = times;
+		return histogram == null ? 0 : histogram.getValueAtPercentile(99);
+	}
+
+	/** Gets the longest execution time in microseconds, or 0 if none. */
+	public long getTimeMax() {
+		final LogHistogram histogram = times;
+		return histogram == null ? 0 : histogram.getMax();
+	}
+
+	/**
+	 * Records the resources used by one execution of the object. Negative
+	 * values denote resources which were not measured.
+	 */
+	public void recordResources(final long cpuNanos, final long bytes) {
+		if (cpuNanos >= 0) CPU_TIME.addAndGet(this, cpuNanos);
+		if (bytes >= 0) ALLOCATED_BYTES.addAndGet(this, bytes);
+		MEASURED_COUNT.incrementAndGet(this);
+	}
+
+	/** Gets the total CPU time of measured executions, in nanoseconds. */
+	public long getCpuTime() {
+		return cpuTime;
+	}
+
+	/** Gets the total bytes allocated by measured executions. */
+	public long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	/** Gets the number of executions whose resource usage was measured. */
+	public long getMeasuredCount() {
+		return measuredCount;
+	}
+
+	/**
+	 * Gets the number of executions which ended with the given outcome. Like
+	 * the {@link #getCount() count}, outcomes are scaled up from sampled events;
+	 * they are only available in snapshots of the statistics (see
+	 * {@link UsageService#snapshotStats()}), and are 0 otherwise.
+	 */
+	public long getOutcomeCount(final UsageOutcome outcome) {
+		final long[] counts = outcomes;
+		return counts == null ? 0 : counts[outcome.ordinal()];
+	}
+
+	/** Adds all usage recorded by other statistics of the same object. */
+	void merge(final UsageStats other) {
+		if (other.estimated) estimated = true;
+		error += other.error;
+		COUNT.addAndGet(this, other.count);
+		CPU_TIME.addAndGet(this, other.cpuTime);
+		ALLOCATED_BYTES.addAndGet(this, other.allocatedBytes);
+		MEASURED_COUNT.addAndGet(this, other.measuredCount);
+		if (other.times != null) times().add(other.times);
+		if (other.outcomes != null) addOutcomes(other.outcomes);
+	}
+
+	/**
+	 * Adds counts by {@link UsageOutcome}, indexed by ordinal. NB: Unlike the
+	 * other counts, these are not updated atomically; they are only added to
+	 * snapshots, by one thread.
+	 */
+	void addOutcomes(final long[] counts) {
+		if (outcomes == null) outcomes = new long[UsageOutcome.values().length];
+		for (int o = 0; o < counts.length; o++) {
+			outcomes[o] += counts[o];
+		}
+	}
+
+	/** Gets whether any execution ended other than by completing. */
+	boolean hasFailures() {
+		final long[] counts = outcomes;
+		if (counts == null) return false;
+		final int executed = UsageOutcome.EXECUTED.ordinal();
+		for (int o = 0; o < counts.length; o++) {
+			if (o != executed && counts[o] != 0) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Flags the count as changed since the entry was last ranked, returning
+	 * true if it was not already so flagged.
+	 */
+	boolean markStale() {
+		return stale == 0 && STALE.compareAndSet(this, 0, 1);
+	}
+
+	/** Clears the flag set by {@link #markStale()}. */
+	void markFresh() {
+		stale = 0;
+	}
+
+	/** Estimates the heap footprint of these statistics, in bytes. */
+	long estimateBytes() {
+		return ENTRY_BYTES + bytes(id) + bytes(url) + bytes(version) + //
+			bytes(getName()) + bytes(getLabel()) + bytes(getDescription()) + //
+			(times == null ? 0 : HISTOGRAM_BYTES);
+	}
+
+	/** Writes these statistics compactly, to be read back by {@link #read}. */
+	void write(final DataOutput out) throws IOException {
+		writeString(out, id);
+		writeString(out, url);
+		writeString(out, version);
+		writeString(out, getName());
+		writeString(out, getLabel());
+		writeString(out, getDescription());
+		out.writeLong(count);
+		out.writeLong(error);
+		out.writeBoolean(estimated);
+		out.writeLong(cpuTime);
+		out.writeLong(allocatedBytes);
+		out.writeLong(measuredCount);
+		out.writeBoolean(times != null);
+		if (times != null) times.write(out);
+		out.writeBoolean(outcomes != null);
+		if (outcomes != null) {
+			for (final long c : outcomes) out.writeLong(c);
+		}
+	}
+
+	/** Reads statistics written by {@link #write(DataOutput)}. */
+	static UsageStats read(final DataInput in) throws IOException {
+		final UsageStats usage =
+			new UsageStats(readString(in), readString(in), readString(in));
+		usage.setName(readString(in));
+		usage.setLabel(readString(in));
+		usage.setDescription(readString(in));
+		usage.count = in.readLong();
+		usage.error = in.readLong();
+		usage.estimated = in.readBoolean();
+		usage.cpuTime = in.readLong();
+		usage.allocatedBytes = in.readLong();
+		usage.measuredCount = in.readLong();
+		if (in.readBoolean()) usage.times().read(in);
+		if (in.readBoolean()) {
+			final long[] counts = new long[UsageOutcome.values().length];
+			for (int o = 0; o < counts.length; o++) counts[o] = in.readLong();
+			usage.outcomes = counts;
+		}
+		return usage;
 	}
 
 	// -- Identifiable methods --
@@ -106,4 +402,43 @@ public class UsageStats extends AbstractBasicDetails implements Identifiable,
 		return version;
 	}
 
+	// -- Helper methods --
+
+	/** Gets the execution time histogram, creating it if needed. */
+	private LogHistogram times() {
+		final LogHistogram histogram = times;
+		if (histogram != null) return histogram;
+		TIMES.compareAndSet(this, null, new LogHistogram(MAX_TIME));
+		return times;
+	}
+
+	private static long bytes(final String s) {
+		return s == null ? 0 : STRING_BYTES + 2L * s.length();
+	}
+
+	/**
+	 * Writes the given string as its length-prefixed UTF-8 bytes, or a length
+	 * of -1 if null. Unlike {@link DataOutput#writeUTF}, strings of any length
+	 * (e.g., long descriptions) can be written.
+	 */
+	private static void writeString(final DataOutput out, final String s)
+		throws IOException
+	{
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		final byte[] bytes = DigestUtils.bytes(s);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(final DataInput in) throws IOException {
+		final int length = in.readInt();
+		if (length < 0) return null;
+		final byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return DigestUtils.string(bytes);
+	}
+
 }
@@ -55,6 +55,12 @@ public class PrivacyOptions extends OptionsPlugin {
 			+ "as for continued funding of useful functionality.")
 	private boolean usageCollected = false;
 
+	@Parameter(label = "Include execution times",
+		description = "Whether the anonymous usage statistics include how long "
+			+ "each plugin takes to run. Such information helps the developers "
+			+ "find and fix slow plugins.")
+	private boolean timesCollected = false;
+
 	// -- PrivacyOptions methods --
 
 	public boolean isUsageCollected() {
@@ -65,4 +71,12 @@ public class PrivacyOptions extends OptionsPlugin {
 		this.usageCollected = usageCollected;
 	}
 
+	public boolean isTimesCollected() {
+		return timesCollected;
+	}
+
+	public void setTimesCollected(final boolean timesCollected) {
+		this.timesCollected = timesCollected;
+	}
+
 }
@@ -0,0 +1,398 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2016 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.usage.relay;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.scijava.log.LogService;
+import org.scijava.util.DigestUtils;
+
+/**
+ * Durable queue of payloads awaiting forwarding by a {@link UsageRelay}.
+ * <p>
+ * Each payload is written to a file of its own before any attempt to send
+ * it, and deleted only once the upstream server has stored it; so payloads
+ * survive both network outages and restarts of the relay. Every payload
+ * carries a {@code batch_id}, by which the server discards payloads it has
+ * already stored, should a send fail after the fact.
+ * </p>
+ * <p>
+ * The outbox also journals the uploads received during the current window,
+ * each before it is acknowledged, until they are queued as payloads; and
+ * keeps the IDs of recently received batches, by which the relay discards
+ * client retries across restarts.
+ * </p>
+ * <p>
+ * The payloads of a window are queued all or none: they are written to a
+ * staging directory, along with the names of the journaled uploads they
+ * supersede, which is then renamed as a whole. Only afterwards are those
+ * uploads released and the payloads moved into the queue, which is completed
+ * on restart if interrupted.
+ * </p>
+ */
+class RelayOutbox {
+
+	/** Milliseconds to wait for a connection to, or response from, upstream. */
+	private static final int TIMEOUT = 60 * 1000;
+
+	/** Seconds to wait when the server defers without saying how long. */
+	private static final long DEFAULT_RETRY_AFTER = 60 * 60;
+
+	private static final String SUFFIX = ".json";
+
+	private static final String RECEIVED_SUFFIX = ".upload";
+
+	private static final String WINDOW_SUFFIX = ".window";
+
+	private static final String TMP_SUFFIX = ".tmp";
+
+	private static final String BATCHES_FILE = "batches";
+
+	/** File of a queued window listing the journaled uploads it supersedes. */
+	private static final String MANIFEST_FILE = "received";
+
+	private final File dir;
+	private final LogService log;
+
+	/** Distinguishes files written within the same millisecond. */
+	private final AtomicInteger sequence = new AtomicInteger();
+
+	/** Time before which upstream asked not to be sent anything, or 0. */
+	private long notBefore;
+
+	public RelayOutbox(final File dir, final LogService log) throws IOException {
+		this.dir = dir;
+		this.log = log;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create outbox: " + dir);
+		}
+		// NB: Discard files and windows whose writing was interrupted, and
+		// finish queuing the windows written in full.
+		for (final File file : list(dir, TMP_SUFFIX)) {
+			delete(file);
+		}
+		for (final File window : list(dir, WINDOW_SUFFIX)) {
+			complete(window);
+		}
+	}
+
+	/**
+	 * Queues the payloads of a window durably, all or none, giving each a batch
+	 * ID; then releases the given journaled uploads, which they supersede.
+	 */
+	public void queue(final List<JSONObject> payloads, final List<File> received)
+		throws IOException
+	{
+		final String name = nextName();
+		final File staging = new File(dir, name + TMP_SUFFIX);
+		final File window = new File(dir, name + WINDOW_SUFFIX);
+		if (!staging.mkdir()) throw new IOException("Cannot create " + staging);
+		try {
+			for (final JSONObject payload : payloads) {
+				payload.put("batch_id", UUID.randomUUID().toString());
+				final String uploads = payload.getJSONArray("uploads").toString();
+				payload.put("content_hash", DigestUtils.hex(DigestUtils.sha1(
+					DigestUtils.bytes(uploads))));
+				write(staging, nextName() + SUFFIX, DigestUtils.bytes(payload
+					.toString()));
+			}
+			final StringBuilder sb = new StringBuilder();
+			for (final File file : received) {
+				sb.append(file.getName()).append('\n');
+			}
+			write(staging, MANIFEST_FILE, DigestUtils.bytes(sb.toString()));
+			Files.move(staging.toPath(), window.toPath(),
+				StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (final IOException exc) {
+			delete(staging);
+			throw exc;
+		}
+		complete(window);
+	}
+
+	/** Gets the queued payload files, oldest first. */
+	public List<File> pending() {
+		return list(dir, SUFFIX);
+	}
+
+	/** Journals the given upload durably, as received. */
+	public void receive(final JSONObject upload) throws IOException {
+		write(dir, nextName() + RECEIVED_SUFFIX, DigestUtils.bytes(upload
+			.toString()));
+	}
+
+	/** Gets the journaled upload files, oldest first. */
+	public List<File> received() {
+		return list(dir, RECEIVED_SUFFIX);
+	}
+
+	/** Reads the upload journaled in the given file, or null if unreadable. */
+	public JSONObject read(final File file) {
+		try {
+			return new JSONObject(DigestUtils.string(Files.readAllBytes(file
+				.toPath())));
+		}
+		catch (final IOException exc) {
+			log.warn("Cannot read received usage statistics: " + file, exc);
+		}
+		catch (final JSONException exc) {
+			log.warn("Cannot read received usage statistics: " + file, exc);
+		}
+		return null;
+	}
+
+	/** Gets the saved IDs of recently received batches, oldest first. */
+	public List<String> batchIds() {
+		final List<String> ids = new ArrayList<String>();
+		final File file = new File(dir, BATCHES_FILE);
+		if (!file.exists()) return ids;
+		try {
+			for (final String id : DigestUtils.string(Files.readAllBytes(file
+				.toPath())).split("\n"))
+			{
+				if (!id.isEmpty()) ids.add(id);
+			}
+		}
+		catch (final IOException exc) {
+			log.warn("Cannot read recent batch IDs", exc);
+		}
+		return ids;
+	}
+
+	/** Saves the IDs of recently received batches, replacing those saved. */
+	public void saveBatchIds(final Collection<String> ids) throws IOException {
+		final StringBuilder sb = new StringBuilder();
+		for (final String id : ids) {
+			sb.append(id).append('\n');
+		}
+		write(dir, BATCHES_FILE, DigestUtils.bytes(sb.toString()));
+	}
+
+	/**
+	 * Sends queued payloads to the given URL, oldest first, until all are sent,
+	 * one fails, or the server defers them.
+	 *
+	 * @return The number of payloads sent.
+	 */
+	public synchronized int send(final String url) {
+		if (System.currentTimeMillis() < notBefore) return 0;
+		int sent = 0;
+		for (final File file : pending()) {
+			final long retryAfter;
+			try {
+				retryAfter = post(Files.readAllBytes(file.toPath()), url);
+			}
+			catch (final IOException exc) {
+				log.warn("Cannot forward usage statistics; will retry", exc);
+				break;
+			}
+			if (retryAfter >= 0) {
+				log.info("Usage server busy; forwarding again in " + retryAfter +
+					" seconds");
+				notBefore = System.currentTimeMillis() + 1000 * retryAfter;
+				break;
+			}
+			if (!file.delete()) log.warn("Cannot delete forwarded payload: " + file);
+			sent++;
+		}
+		return sent;
+	}
+
+	// -- Helper methods --
+
+	/** Gets a new file name, such that names sort in the order written. */
+	private String nextName() {
+		return String.format("%013d-%04d", System.currentTimeMillis(), Math
+			.floorMod(sequence.getAndIncrement(), 10000));
+	}
+
+	/**
+	 * Releases the journaled uploads superseded by a queued window, then moves
+	 * its payloads into the queue. Left as is on failure, for the next restart.
+	 */
+	private void complete(final File window) {
+		final File manifest = new File(window, MANIFEST_FILE);
+		try {
+			if (manifest.exists()) {
+				for (final String name : DigestUtils.string(Files.readAllBytes(
+					manifest.toPath())).split("\n"))
+				{
+					if (name.isEmpty()) continue;
+					final File file = new File(dir, name);
+					if (file.exists() && !file.delete()) {
+						throw new IOException("Cannot delete received upload: " + file);
+					}
+				}
+				if (!manifest.delete()) throw new IOException("Cannot delete " +
+					manifest);
+			}
+			for (final File file : list(window, SUFFIX)) {
+				Files.move(file.toPath(), new File(dir, file.getName()).toPath(),
+					StandardCopyOption.ATOMIC_MOVE);
+			}
+			if (!window.delete()) throw new IOException("Cannot delete " + window);
+		}
+		catch (final IOException exc) {
+			log.warn("Cannot finish queuing usage statistics: " + window, exc);
+		}
+	}
+
+	/** Writes the given file durably and atomically. */
+	private void write(final File parent, final String name, final byte[] data)
+		throws IOException
+	{
+		final File tmp = new File(parent, name + TMP_SUFFIX);
+		final FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			out.write(data);
+			out.flush();
+			out.getFD().sync();
+		}
+		finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), new File(parent, name).toPath(),
+			StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/** Gets the files of a directory with the given suffix, oldest first. */
+	private static List<File> list(final File dir, final String suffix) {
+		final File[] files = dir.listFiles();
+		final List<File> list = new ArrayList<File>();
+		if (files == null) return list;
+		Arrays.sort(files);
+		for (final File file : files) {
+			if (file.getName().endsWith(suffix)) list.add(file);
+		}
+		return list;
+	}
+
+	/**
+	 * Posts the given payload.
+	 *
+	 * @return The seconds after which the server asked for the payload again, or
+	 *         -1 if it was stored.
+	 * @throws IOException If the server could not be reached, or did not
+	 *           respond as expected.
+	 */
+	private long post(final byte[] data, final String urlSpec)
+		throws IOException
+	{
+		final HttpURLConnection connection =
+			(HttpURLConnection) new URL(urlSpec).openConnection();
+		connection.setConnectTimeout(TIMEOUT);
+		connection.setReadTimeout(TIMEOUT);
+		connection.setDoOutput(true);
+		connection.setRequestMethod("POST");
+		connection.setRequestProperty("Content-Type", "application/json");
+		connection.setRequestProperty("charset", "UTF-8");
+		connection.setFixedLengthStreamingMode(data.length);
+		final OutputStream out = connection.getOutputStream();
+		out.write(data);
+		out.close();
+
+		final int code = connection.getResponseCode();
+		if (code == 429 || code == HttpURLConnection.HTTP_UNAVAILABLE) {
+			connection.disconnect();
+			return seconds(connection.getHeaderField("Retry-After"));
+		}
+		if (code != HttpURLConnection.HTTP_OK) {
+			connection.disconnect();
+			throw new IOException("Unexpected response code: " + code);
+		}
+		final String response = DigestUtils.string(read(connection
+			.getInputStream()));
+		final JSONObject json;
+		try {
+			json = new JSONObject(response);
+		}
+		catch (final JSONException exc) {
+			throw new IOException("Unexpected response: " + response, exc);
+		}
+		if (json.has("retry_after")) return seconds(json.optString("retry_after"));
+		return -1;
+	}
+
+	private long seconds(final String value) {
+		if (value == null) return DEFAULT_RETRY_AFTER;
+		try {
+			return Math.max(0, Long.parseLong(value.trim()));
+		}
+		catch (final NumberFormatException exc) {
+			return DEFAULT_RETRY_AFTER;
+		}
+	}
+
+	/** Deletes the given file, or directory along with its files. */
+	private static void delete(final File file) {
+		final File[] files = file.listFiles();
+		if (files != null) for (final File f : files) {
+			f.delete();
+		}
+		file.delete();
+	}
+
+	private static byte[] read(final InputStream in) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buf = new byte[8192];
+		try {
+			while (true) {
+				final int r = in.read(buf);
+				if (r < 0) break;
+				out.write(buf, 0, r);
+			}
+		}
+		finally {
+			in.close();
+		}
+		return out.toByteArray();
+	}
+
+}
@@ -0,0 +1,237 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2016 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.usage.relay;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Merges the uploads received by a {@link UsageRelay} during one window, into
+ * one upload per anonymized user with one statistic per object.
+ * <p>
+ * Counts, errors, outcomes and resource usage are summed. Execution time
+ * percentiles cannot be merged exactly: the larger maximum and 99th
+ * percentile are kept, and the median is averaged, weighted by count.
+ * </p>
+ */
+class RelayWindow {
+
+	/** Top-level fields which identify an upload, rather than describe it. */
+	private static final String[] TRANSIENT_KEYS = { "sites", "session",
+		"batch_id", "content_hash" };
+
+	/** Merged upload of each anonymized user. */
+	private final Map<String, UserUpload> users =
+		new LinkedHashMap<String, UserUpload>();
+
+	/** Number of distinct statistics held. */
+	private int size;
+
+	/** Merges the given upload (or batch of one) into the window. */
+	public synchronized void add(final JSONObject upload) {
+		final String user = upload.optString("user", "");
+		UserUpload merged = users.get(user);
+		if (merged == null) {
+			merged = new UserUpload();
+			users.put(user, merged);
+		}
+
+		// NB: The most recent upload's system properties prevail.
+		final Iterator<?> keys = upload.keys();
+		while (keys.hasNext()) {
+			final String key = (String) keys.next();
+			if (!isTransient(key)) merged.header.put(key, upload.get(key));
+		}
+
+		final JSONArray sites = upload.optJSONArray("sites");
+		if (sites == null) return;
+		for (int s = 0; s < sites.length(); s++) {
+			final JSONObject site = sites.getJSONObject(s);
+			final String siteKey = site.optString("name", "") + "\n" + //
+				site.optString("url", "");
+			SiteStats siteStats = merged.sites.get(siteKey);
+			if (siteStats == null) {
+				siteStats = new SiteStats(site);
+				merged.sites.put(siteKey, siteStats);
+			}
+			final JSONArray stats = site.optJSONArray("stats");
+			if (stats == null) continue;
+			for (int i = 0; i < stats.length(); i++) {
+				final JSONObject stat = stats.getJSONObject(i);
+				final String statKey = stat.optString("id", "") + "\n" + //
+					stat.optString("version", "");
+				final JSONObject existing = siteStats.stats.get(statKey);
+				if (existing == null) {
+					siteStats.stats.put(statKey, stat);
+					size++;
+				}
+				else merge(existing, stat);
+			}
+		}
+	}
+
+	/** Gets the number of distinct statistics held. */
+	public synchronized int size() {
+		return size;
+	}
+
+	/** Gets the merged uploads of each user, then empties the window. */
+	public synchronized List<JSONObject> drain() {
+		final List<JSONObject> uploads = new ArrayList<JSONObject>();
+		for (final UserUpload merged : users.values()) {
+			final JSONObject upload = merged.header;
+			upload.put("sites", new JSONArray());
+			for (final SiteStats siteStats : merged.sites.values()) {
+				final JSONObject site = new JSONObject();
+				site.put("name", siteStats.name);
+				site.put("url", siteStats.url);
+				final JSONArray stats = new JSONArray();
+				for (final JSONObject stat : siteStats.stats.values()) {
+					stats.put(stat);
+				}
+				site.put("stats", stats);
+				upload.append("sites", site);
+			}
+			uploads.add(upload);
+		}
+		users.clear();
+		size = 0;
+		return uploads;
+	}
+
+	/** Counts the statistics of the given upload. */
+	static int countStats(final JSONObject upload) {
+		final JSONArray sites = upload.optJSONArray("sites");
+		if (sites == null) return 0;
+		int count = 0;
+		for (int s = 0; s < sites.length(); s++) {
+			final JSONArray stats = sites.getJSONObject(s).optJSONArray("stats");
+			if (stats != null) count += stats.length();
+		}
+		return count;
+	}
+
+	// -- Helper methods --
+
+	private static boolean isTransient(final String key) {
+		for (final String k : TRANSIENT_KEYS) {
+			if (k.equals(key)) return true;
+		}
+		return false;
+	}
+
+	/** Merges the second statistic of an object into the first. */
+	private static void merge(final JSONObject stat, final JSONObject other) {
+		final long count = stat.optLong("count");
+		final long otherCount = other.optLong("count");
+		if (stat.has("time_p50") || other.has("time_p50")) {
+			final long p50 = stat.optLong("time_p50");
+			final long otherP50 = other.optLong("time_p50");
+			final long weight = stat.has("time_p50") ? count : 0;
+			final long otherWeight = other.has("time_p50") ? otherCount : 0;
+			// NB: Weigh in floating point, lest the products overflow.
+			stat.put("time_p50", weight + otherWeight == 0 ? Math.max(p50,
+				otherP50) : (long) (((double) p50 * weight + (double) otherP50 *
+					otherWeight) / (weight + otherWeight)));
+		}
+		stat.put("count", count + otherCount);
+		if (other.optBoolean("estimated")) stat.put("estimated", true);
+		sum(stat, other, "error");
+		sum(stat, other, "measured");
+		sum(stat, other, "cpu_time");
+		sum(stat, other, "allocated");
+		max(stat, other, "time_p99");
+		max(stat, other, "time_max");
+		sumEach(stat, other, "outcomes");
+	}
+
+	private static void sum(final JSONObject stat, final JSONObject other,
+		final String key)
+	{
+		if (other.has(key)) stat.put(key, stat.optLong(key) + other.optLong(key));
+	}
+
+	private static void sumEach(final JSONObject stat, final JSONObject other,
+		final String key)
+	{
+		final JSONArray otherCounts = other.optJSONArray(key);
+		if (otherCounts == null) return;
+		final JSONArray counts = stat.optJSONArray(key);
+		final JSONArray sums = new JSONArray();
+		final int length = Math.max(otherCounts.length(),
+			counts == null ? 0 : counts.length());
+		for (int i = 0; i < length; i++) {
+			final long count = counts == null ? 0 : counts.optLong(i);
+			sums.put(count + otherCounts.optLong(i));
+		}
+		stat.put(key, sums);
+	}
+
+	private static void max(final JSONObject stat, final JSONObject other,
+		final String key)
+	{
+		if (other.has(key)) {
+			stat.put(key, Math.max(stat.optLong(key), other.optLong(key)));
+		}
+	}
+
+	// -- Helper classes --
+
+	/** Merged upload of one user. */
+	private static class UserUpload {
+
+		private final JSONObject header = new JSONObject();
+		private final Map<String, SiteStats> sites =
+			new LinkedHashMap<String, SiteStats>();
+	}
+
+	/** Merged statistics of one update site, by identifier and version. */
+	private static class SiteStats {
+
+		private final Object name;
+		private final Object url;
+		private final Map<String, JSONObject> stats =
+			new LinkedHashMap<String, JSONObject>();
+
+		public SiteStats(final JSONObject site) {
+			name = site.opt("name");
+			url = site.opt("url");
+		}
+	}
+
+}
@@ -0,0 +1,448 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2016 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.usage.relay;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import net.imagej.usage.DefaultUsageUploadService;
+import net.imagej.usage.JSONUploader;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.scijava.log.LogService;
+import org.scijava.log.StderrLogService;
+import org.scijava.util.DigestUtils;
+
+/**
+ * Site-local relay, which accepts usage statistics from many clients and
+ * forwards them upstream in merged, batched form.
+ * <p>
+ * The relay speaks the same upload protocol as the usage server, so clients
+ * need only be pointed at it (see
+ * {@link DefaultUsageUploadService#SERVER_PROPERTY}). Uploads are merged per
+ * anonymized user and object over a window; at the end of each window, the
+ * merged uploads are packed into payloads of several users each, queued
+ * durably, and forwarded to the upstream server, which stores each user's
+ * upload as a separate event. Payloads which cannot be forwarded (e.g., while
+ * offline) stay queued until they can.
+ * </p>
+ * <p>
+ * Each upload is journaled in the outbox before it is acknowledged, and
+ * replayed into the window should the relay restart before the window is
+ * queued; so acknowledged uploads are not lost. A window which cannot be
+ * queued is merged back into the next one. The IDs of recently received
+ * batches are saved in the outbox as well, so that client retries are
+ * discarded across restarts.
+ * </p>
+ * <p>
+ * The relay listens on the loopback interface only, unless a host (e.g.,
+ * {@code 0.0.0.0} for all interfaces) is given.
+ * </p>
+ * <p>
+ * Usage:
+ * {@code UsageRelay [port] [upstreamURL] [outboxDir] [windowSeconds] [host]}
+ * </p>
+ */
+public class UsageRelay {
+
+	/** Default port on which to accept uploads. */
+	public static final int DEFAULT_PORT = 8080;
+
+	/** Default server to which merged uploads are forwarded. */
+	public static final String DEFAULT_UPSTREAM =
+		"http://usage.imagej.net/stats.php";
+
+	/** Default duration of a merge window, in seconds. */
+	public static final long DEFAULT_WINDOW = 15 * 60;
+
+	/** Most statistics packed into one forwarded payload. */
+	private static final int MAX_PAYLOAD_STATS = JSONUploader.DEFAULT_BATCH_SIZE;
+
+	/** Number of recent batch IDs remembered, to discard client retries. */
+	private static final int RECENT_BATCHES = 10000;
+
+	/** Seconds after which clients should resend uploads not relayed. */
+	private static final long RETRY_AFTER = 15 * 60;
+
+	private static final int THREADS = 4;
+
+	private final String upstream;
+	private final LogService log;
+	private final RelayWindow window = new RelayWindow();
+	private final RelayOutbox outbox;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * Held to journal and add an upload, or exclusively to drain the window
+	 * along with its journal.
+	 */
+	private final ReadWriteLock windowLock = new ReentrantReadWriteLock();
+
+	/** IDs of recently received batches, oldest first. */
+	private final Set<String> recentBatches = Collections.newSetFromMap(
+		new LinkedHashMap<String, Boolean>()
+		{
+
+			@Override
+			protected boolean removeEldestEntry(
+				final Map.Entry<String, Boolean> eldest)
+			{
+				return size() > RECENT_BATCHES;
+			}
+		});
+
+	/**
+	 * Starts a relay accepting uploads on the given port (0 for any free port)
+	 * of the loopback interface, and forwarding them to the given URL at the end
+	 * of each window.
+	 */
+	public UsageRelay(final int port, final String upstream,
+		final File outboxDir, final long windowSeconds, final LogService log)
+		throws IOException
+	{
+		this(null, port, upstream, outboxDir, windowSeconds, log);
+	}
+
+	/**
+	 * Starts a relay accepting uploads on the given host and port (0 for any
+	 * free port), and forwarding them to the given URL at the end of each
+	 * window.
+	 *
+	 * @param host The host name or address on which to listen, or null for the
+	 *          loopback interface.
+	 */
+	public UsageRelay(final String host, final int port, final String upstream,
+		final File outboxDir, final long windowSeconds, final LogService log)
+		throws IOException
+	{
+		this(host, port, upstream, new RelayOutbox(outboxDir, log), windowSeconds,
+			log);
+	}
+
+	/** Starts a relay queuing merged uploads in the given outbox. */
+	UsageRelay(final String host, final int port, final String upstream,
+		final RelayOutbox outbox, final long windowSeconds, final LogService log)
+		throws IOException
+	{
+		this.upstream = upstream;
+		this.log = log;
+		this.outbox = outbox;
+		recover();
+		final InetSocketAddress address = host == null ? //
+			new InetSocketAddress(InetAddress.getLoopbackAddress(), port) : //
+			new InetSocketAddress(host, port);
+		server = HttpServer.create(address, 0);
+		server.createContext("/stats.php", new StatsHandler());
+		executor = Executors.newFixedThreadPool(THREADS);
+		server.setExecutor(executor);
+		scheduler = Executors.newSingleThreadScheduledExecutor();
+		server.start();
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				flush();
+			}
+		}, windowSeconds, windowSeconds, TimeUnit.SECONDS);
+	}
+
+	/** Gets the URL to which clients should upload statistics. */
+	public String getURL() {
+		final InetSocketAddress address = server.getAddress();
+		final String host = address.getAddress().isAnyLocalAddress() ? //
+			"localhost" : address.getHostString();
+		return "http://" + host + ":" + address.getPort() + "/stats.php";
+	}
+
+	/** Gets the number of statistics held in the current window. */
+	public int getWindowSize() {
+		return window.size();
+	}
+
+	/** Gets the number of payloads awaiting forwarding. */
+	public int getPendingCount() {
+		return outbox.pending().size();
+	}
+
+	/**
+	 * Ends the current window: queues its merged uploads, then forwards all
+	 * queued payloads upstream.
+	 */
+	public synchronized void flush() {
+		final List<JSONObject> uploads;
+		final List<File> received;
+		windowLock.writeLock().lock();
+		try {
+			uploads = window.drain();
+			received = outbox.received();
+		}
+		finally {
+			windowLock.writeLock().unlock();
+		}
+		try {
+			saveBatchIds();
+		}
+		catch (final IOException exc) {
+			log.warn("Cannot save recent batch IDs", exc);
+		}
+		if (!uploads.isEmpty()) {
+			try {
+				outbox.queue(payloads(uploads), received);
+			}
+			catch (final IOException exc) {
+				// NB: Nothing was queued; merge the window back, to be queued with
+				// the next one. Its uploads stay journaled meanwhile.
+				log.error("Cannot queue usage statistics; will retry", exc);
+				windowLock.readLock().lock();
+				try {
+					for (final JSONObject upload : uploads) {
+						window.add(upload);
+					}
+				}
+				finally {
+					windowLock.readLock().unlock();
+				}
+			}
+		}
+		final int sent = outbox.send(upstream);
+		if (sent > 0) log.info("Forwarded " + sent + " usage payloads");
+	}
+
+	/** Stops accepting uploads, then flushes the final window. */
+	public void stop() {
+		server.stop(0);
+		executor.shutdown();
+		scheduler.shutdown();
+		try {
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+			scheduler.awaitTermination(10, TimeUnit.SECONDS);
+		}
+		catch (final InterruptedException exc) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+	}
+
+	// -- Main method --
+
+	public static void main(final String... args) throws IOException {
+		final int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		final String upstream = args.length > 1 ? args[1] : DEFAULT_UPSTREAM;
+		final File outboxDir = new File(args.length > 2 ? args[2] : //
+			System.getProperty("user.home") + "/.imagej-usage-relay");
+		final long window = args.length > 3 ? Long.parseLong(args[3]) : //
+			DEFAULT_WINDOW;
+		final String host = args.length > 4 ? args[4] : null;
+
+		final StderrLogService log = new StderrLogService();
+		final UsageRelay relay =
+			new UsageRelay(host, port, upstream, outboxDir, window, log);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+
+			@Override
+			public void run() {
+				relay.stop();
+			}
+		});
+		log.info("Relaying usage statistics from " + relay.getURL() + " to " +
+			upstream);
+	}
+
+	// -- Helper methods --
+
+	/**
+	 * Restores the IDs of recent batches, and the window journaled before the
+	 * relay last stopped.
+	 */
+	private void recover() {
+		for (final String batchId : outbox.batchIds()) {
+			recentBatches.add(batchId);
+		}
+		final List<File> received = outbox.received();
+		for (final File file : received) {
+			final JSONObject upload = outbox.read(file);
+			if (upload == null) continue;
+			final String batchId = upload.optString("batch_id", null);
+			if (batchId != null) recentBatches.add(batchId);
+			window.add(upload);
+		}
+		if (!received.isEmpty()) {
+			log.info("Recovered " + received.size() + " received uploads");
+		}
+	}
+
+	/** Packs the given merged uploads into payloads of several users each. */
+	private List<JSONObject> payloads(final List<JSONObject> uploads) {
+		final List<JSONObject> payloads = new ArrayList<JSONObject>();
+		JSONObject payload = null;
+		int payloadStats = 0;
+		for (final JSONObject upload : uploads) {
+			final int stats = RelayWindow.countStats(upload);
+			if (payload != null && payloadStats + stats > MAX_PAYLOAD_STATS) {
+				payload = null;
+			}
+			if (payload == null) {
+				payload = new JSONObject();
+				payload.put(DefaultUsageUploadService.VERSION_KEY,
+					DefaultUsageUploadService.VERSION);
+				payloads.add(payload);
+				payloadStats = 0;
+			}
+			payload.append("uploads", upload);
+			payloadStats += stats;
+		}
+		return payloads;
+	}
+
+	/** Saves the IDs of recent batches to the outbox. */
+	private void saveBatchIds() throws IOException {
+		final List<String> ids;
+		synchronized (recentBatches) {
+			ids = new ArrayList<String>(recentBatches);
+		}
+		outbox.saveBatchIds(ids);
+	}
+
+	// -- Helper classes --
+
+	/** Accepts uploads the same way as {@code stats.php}. */
+	private class StatsHandler implements HttpHandler {
+
+		@Override
+		public void handle(final HttpExchange exchange) throws IOException {
+			final String data = DigestUtils.string(read(exchange.getRequestBody()));
+			final JSONObject output = new JSONObject();
+			if (data.length() == 0) {
+				output.put("message", "No statistics to process");
+				respond(exchange, output);
+				return;
+			}
+			final JSONObject json;
+			try {
+				json = new JSONObject(data);
+			}
+			catch (final JSONException exc) {
+				respond(exchange, null);
+				return;
+			}
+
+			// NB: Like stats.php, silently ignore uploads before version 2.0.
+			if (json.optDouble(DefaultUsageUploadService.VERSION_KEY, 0) < 2.0) {
+				respond(exchange, null);
+				return;
+			}
+
+			final String batchId = json.optString("batch_id", null);
+			final boolean duplicate;
+			synchronized (recentBatches) {
+				duplicate = batchId != null && !recentBatches.add(batchId);
+			}
+			if (duplicate) {
+				output.put("message", "Duplicate statistics ignored");
+				output.put("duplicate", true);
+				respond(exchange, output);
+				return;
+			}
+
+			windowLock.readLock().lock();
+			try {
+				outbox.receive(json);
+				window.add(json);
+			}
+			catch (final IOException exc) {
+				log.error("Cannot journal usage statistics", exc);
+				synchronized (recentBatches) {
+					if (batchId != null) recentBatches.remove(batchId);
+				}
+				// NB: Ask the client to keep the statistics and send them again later.
+				output.put("message", "Cannot relay statistics");
+				output.put("retry_after", RETRY_AFTER);
+				respond(exchange, output);
+				return;
+			}
+			finally {
+				windowLock.readLock().unlock();
+			}
+			output.put("message", "Statistics relayed");
+			respond(exchange, output);
+		}
+
+		private byte[] read(final InputStream in) throws IOException {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final byte[] buf = new byte[8192];
+			while (true) {
+				final int r = in.read(buf);
+				if (r < 0) break;
+				out.write(buf, 0, r);
+			}
+			in.close();
+			return out.toByteArray();
+		}
+
+		private void respond(final HttpExchange exchange, final JSONObject output)
+			throws IOException
+		{
+			final byte[] body = output == null ? new byte[0] : //
+				DigestUtils.bytes(output.toString());
+			exchange.getResponseHeaders().set("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, body.length == 0 ? -1 : body.length);
+			final OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+		}
+	}
+
+}
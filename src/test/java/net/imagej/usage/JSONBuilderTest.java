@@ -32,8 +32,10 @@
 package net.imagej.usage;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
 import java.io.File;
+import java.util.List;
 
 import net.imagej.updater.UpdateService;
 import net.imagej.updater.UpdateSite;
@@ -121,6 +123,37 @@ public class JSONBuilderTest {
 		assertEquals(count5, stat5.getLong("count"));
 	}
 
+	/** Tests that building in parallel gives the same result. */
+	@Test
+	public void testParallel() {
+		final Thread caller = Thread.currentThread();
+		final boolean[] otherThread = { false };
+		final UpdateService updateService =
+			new SyntheticUsage.SitesUpdateService(7)
+			{
+
+				@Override
+				public UpdateSite getUpdateSite(final File file) {
+					// NB: The update service need not be thread-safe.
+					if (Thread.currentThread() != caller) otherThread[0] = true;
+					return super.getUpdateSite(file);
+				}
+			};
+		final List<UsageStats> stats = SyntheticUsage.stats(20000, 7);
+
+		final JSONBuilder serial = new JSONBuilder(updateService, null);
+		for (final UsageStats usage : stats) {
+			serial.append(usage);
+		}
+		final JSONBuilder parallel = new JSONBuilder(updateService, null);
+		parallel.setParallel(true);
+		parallel.appendAll(stats);
+
+		assertEquals(7, parallel.getJSON().getJSONArray("sites").length());
+		assertEquals(serial.getJSON().toString(), parallel.getJSON().toString());
+		assertFalse(otherThread[0]);
+	}
+
 	// -- Helper methods --
 
 	private UsageStats usageStats(final String id, final long count,
@@ -0,0 +1,117 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2016 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.usage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link LogHistogram}.
+ */
+public class LogHistogramTest {
+
+	@Test
+	public void testEmpty() {
+		final LogHistogram histogram = new LogHistogram(1000);
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getValueAtPercentile(50));
+	}
+
+	@Test
+	public void testPercentiles() {
+		final LogHistogram histogram = new LogHistogram(1000000);
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i);
+		}
+		assertEquals(1000, histogram.getCount());
+		assertEquals(1000, histogram.getMax());
+		assertWithin(500, histogram.getValueAtPercentile(50));
+		assertWithin(990, histogram.getValueAtPercentile(99));
+		assertEquals(1000, histogram.getValueAtPercentile(100));
+
+		// small values are resolved exactly
+		histogram.reset();
+		histogram.record(3);
+		assertEquals(3, histogram.getValueAtPercentile(50));
+	}
+
+	@Test
+	public void testOverflow() {
+		final LogHistogram histogram = new LogHistogram(100);
+		histogram.record(5);
+		histogram.record(1000000);
+		assertEquals(2, histogram.getCount());
+		assertEquals(1000000, histogram.getMax());
+		assertEquals(5, histogram.getValueAtPercentile(50));
+	}
+
+	@Test
+	public void testAddAndSerialize() throws IOException {
+		final LogHistogram histogram = new LogHistogram(1000000);
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i);
+		}
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		histogram.write(new DataOutputStream(bytes));
+
+		final LogHistogram copy = new LogHistogram(1000000);
+		copy.record(5000);
+		copy.read(new DataInputStream(new ByteArrayInputStream(bytes
+			.toByteArray())));
+		assertEquals(1001, copy.getCount());
+		assertEquals(5000, copy.getMax());
+		assertEquals(histogram.getValueAtPercentile(50), //
+			copy.getValueAtPercentile(50));
+
+		histogram.add(copy);
+		assertEquals(2001, histogram.getCount());
+		assertEquals(5000, histogram.getMax());
+	}
+
+	// -- Helper methods --
+
+	/** Asserts the value is within the histogram's 12.5% resolution. */
+	private void assertWithin(final long expected, final long actual) {
+		assertTrue(actual + " vs. " + expected, actual >= expected);
+		assertTrue(actual + " vs. " + expected, actual <= expected * 1.125);
+	}
+
+}
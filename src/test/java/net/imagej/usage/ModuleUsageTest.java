@@ -33,6 +33,8 @@ package net.imagej.usage;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
 
 import org.junit.After;
 import org.junit.Before;
@@ -58,6 +60,10 @@ public class ModuleUsageTest {
 		final Context context =
 			new Context(EventService.class, CommandService.class, UsageService.class);
 		usageService = context.getService(UsageService.class);
+		// NB: Test objects are not from any update site, and usage collection
+		// is disabled by default in the privacy options.
+		((DefaultUsageService) usageService).setUnreportableSkipped(false);
+		((DefaultUsageService) usageService).setCollecting(true);
 		commandService = context.getService(CommandService.class);
 	}
 
@@ -74,6 +80,52 @@ public class ModuleUsageTest {
 		final UsageStats usageStats = usageService.getStats().get(id);
 		assertNotNull(usageStats);
 		assertEquals(id, usageStats.getIdentifier());
+		assertEquals(1, usageStats.getCount());
+	}
+
+	/** Tests timing of {@link Module} executions. */
+	@Test
+	public void testModuleTimes() throws Exception {
+		commandService.run(MyCommand.class, false).get();
+		commandService.run(MyCommand.class, false).get();
+		final String id = "command:" + MyCommand.class.getName();
+		final UsageStats usageStats = usageService.getStats().get(id);
+		assertNotNull(usageStats.getTimes());
+		assertEquals(2, usageStats.getTimes().getCount());
+		assertTrue(usageStats.getTimeP50() <= usageStats.getTimeMax());
+	}
+
+	/** Tests resource accounting of {@link Module} executions. */
+	@Test
+	public void testModuleResources() throws Exception {
+		final DefaultUsageService service = (DefaultUsageService) usageService;
+		service.setResourcesMeasured(true);
+		assumeTrue(service.isResourcesMeasured());
+		commandService.run(MyCommand.class, false).get();
+		final String id = "command:" + MyCommand.class.getName();
+		final UsageStats usageStats = usageService.getStats().get(id);
+		assertEquals(1, usageStats.getMeasuredCount());
+		assertTrue(usageStats.getCpuTime() >= 0);
+		assertTrue(usageStats.getAllocatedBytes() >= 0);
+	}
+
+	/** Tests that nothing is recorded while collection is disabled. */
+	@Test
+	public void testNotCollecting() throws Exception {
+		final DefaultUsageService service = (DefaultUsageService) usageService;
+		commandService.run(MyCommand.class, false).get();
+		assertEquals(1, usageService.getStats().size());
+
+		// disabling collection releases existing statistics
+		service.setCollecting(false);
+		assertTrue(usageService.getStats().isEmpty());
+		commandService.run(MyCommand.class, false).get();
+		assertTrue(usageService.getStats().isEmpty());
+
+		// re-enabling collection resumes recording
+		service.setCollecting(true);
+		commandService.run(MyCommand.class, false).get();
+		assertEquals(1, usageService.getStats().size());
 	}
 
 	public static class MyCommand implements Command {
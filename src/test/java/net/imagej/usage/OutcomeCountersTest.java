@@ -0,0 +1,114 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2016 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.usage;
+
+import static net.imagej.usage.UsageOutcome.CANCELED;
+import static net.imagej.usage.UsageOutcome.ERRORED;
+import static net.imagej.usage.UsageOutcome.EXECUTED;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link OutcomeCounters}.
+ */
+public class OutcomeCountersTest {
+
+	@Test
+	public void testCounting() {
+		final OutcomeCounters counters = new OutcomeCounters();
+		assertFalse(counters.increment("a", EXECUTED, 1));
+		assertTrue(counters.add(details("a"), EXECUTED, 1, 0));
+		assertTrue(counters.increment("a", EXECUTED, 1));
+		assertTrue(counters.increment("a", CANCELED, 3));
+		assertTrue(counters.add(details("b"), ERRORED, 1, 0));
+		assertTrue(counters.add(details("b"), ERRORED, 1, 0));
+		assertEquals(2, counters.size());
+
+		// outcomes join existing entries, or come with entries of their own
+		final Map<String, UsageStats> snapshot =
+			new HashMap<String, UsageStats>();
+		final UsageStats a = details("a");
+		a.increment(2);
+		snapshot.put("a", a);
+		counters.drain(snapshot);
+		assertEquals(2, snapshot.size());
+		assertEquals(2, a.getOutcomeCount(EXECUTED));
+		assertEquals(3, a.getOutcomeCount(CANCELED));
+		assertEquals(0, a.getOutcomeCount(ERRORED));
+		assertTrue(a.hasFailures());
+		final UsageStats b = snapshot.get("b");
+		assertEquals(0, b.getCount());
+		assertEquals(2, b.getOutcomeCount(ERRORED));
+		assertEquals("file:/b", b.getLocation());
+
+		// the counters are drained, but the identifiers kept
+		final Map<String, UsageStats> next = new HashMap<String, UsageStats>();
+		counters.drain(next);
+		assertTrue(next.isEmpty());
+		assertTrue(counters.increment("b", EXECUTED, 1));
+		counters.drain(next);
+		assertEquals(1, next.get("b").getOutcomeCount(EXECUTED));
+		assertFalse(next.get("b").hasFailures());
+	}
+
+	@Test
+	public void testCapacity() {
+		final OutcomeCounters counters = new OutcomeCounters();
+		// NB: Enough identifiers to span several chunks.
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(counters.add(details("id" + i), CANCELED, 1, 1000));
+		}
+		assertFalse(counters.add(details("extra"), CANCELED, 1, 1000));
+		assertTrue(counters.add(details("id7"), CANCELED, 1, 1000));
+		assertEquals(1000, counters.size());
+
+		final Map<String, UsageStats> snapshot =
+			new HashMap<String, UsageStats>();
+		counters.drain(snapshot);
+		assertEquals(1000, snapshot.size());
+		assertEquals(2, snapshot.get("id7").getOutcomeCount(CANCELED));
+		assertEquals(1, snapshot.get("id999").getOutcomeCount(CANCELED));
+	}
+
+	// -- Helper methods --
+
+	private static UsageStats details(final String id) {
+		return new UsageStats(id, "file:/" + id, null);
+	}
+
+}
@@ -0,0 +1,178 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2016 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.usage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link SharedUsageSegment}. Separate segments on the same file stand in
+ * for separate processes.
+ */
+public class SharedUsageSegmentTest {
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("imagej-usage-", ".segment");
+		assertTrue(file.delete());
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Test
+	public void testPooling() throws IOException {
+		final SharedUsageSegment first = new SharedUsageSegment(file, 16, 4);
+		final SharedUsageSegment second = new SharedUsageSegment(file);
+		assertTrue(first.getStripe() != second.getStripe());
+
+		first.publish(Arrays.asList(stats("a", 3), stats("b", 1)));
+		second.publish(Arrays.asList(stats("b", 2), stats("c", 5)));
+
+		// only the leader harvests
+		final Map<String, UsageStats> harvest = byId(first.harvest());
+		assertTrue(first.isLeader());
+		assertFalse(second.isLeader());
+		assertNull(second.harvest());
+		assertEquals(3, harvest.size());
+		assertEquals(3, harvest.get("a").getCount());
+		assertEquals(3, harvest.get("b").getCount());
+		assertEquals(5, harvest.get("c").getCount());
+		assertEquals("file:/c", harvest.get("c").getLocation());
+		assertFalse(harvest.get("b").isEstimated());
+
+		// counts are harvested only once
+		assertTrue(first.harvest().isEmpty());
+		second.publish(Arrays.asList(stats("a", 1)));
+		assertEquals(1, byId(first.harvest()).get("a").getCount());
+
+		// when the leader leaves, its unharvested counts pass to the next one
+		first.publish(Arrays.asList(stats("d", 2)));
+		first.close();
+		final Map<String, UsageStats> next = byId(second.harvest());
+		assertTrue(second.isLeader());
+		assertEquals(1, next.size());
+		assertEquals(2, next.get("d").getCount());
+
+		// a newcomer adopts the segment's dimensions, and may reclaim a stripe
+		final SharedUsageSegment third = new SharedUsageSegment(file);
+		assertTrue(third.getStripe() < 4);
+		third.publish(Arrays.asList(stats("a", 4)));
+		assertEquals(4, byId(second.harvest()).get("a").getCount());
+		second.close();
+		third.close();
+	}
+
+	@Test
+	public void testFull() throws IOException {
+		final SharedUsageSegment segment = new SharedUsageSegment(file, 2, 1);
+		final List<UsageStats> unpublished = segment.publish(Arrays.asList(stats(
+			"a", 1), stats("b", 1), stats("c", 1)));
+		assertEquals(1, unpublished.size());
+		assertEquals("c", unpublished.get(0).getIdentifier());
+		assertEquals(2, segment.harvest().size());
+
+		// every stripe is taken
+		try {
+			new SharedUsageSegment(file);
+			fail("Expected no free stripe");
+		}
+		catch (final IOException exc) {
+			// NB: Expected.
+		}
+		segment.close();
+	}
+
+	@Test
+	public void testDetails() throws IOException {
+		final SharedUsageSegment leader = new SharedUsageSegment(file, 16, 2);
+		final SharedUsageSegment other = new SharedUsageSegment(file);
+		assertTrue(leader.isLeader());
+
+		// versions are kept apart, and estimates stay flagged as such
+		final UsageStats v1 = new UsageStats("a", "file:/a", "1.0");
+		v1.increment(10);
+		final UsageStats v2 = new UsageStats("a", "file:/a", "2.0");
+		v2.inherit(4);
+		v2.add(1);
+		other.publish(Arrays.asList(v1, v2));
+		final List<UsageStats> harvest = leader.harvest();
+		assertEquals(2, harvest.size());
+		final UsageStats h1 = harvest.get(0), h2 = harvest.get(1);
+		assertEquals("1.0", h1.getVersion());
+		assertEquals(10, h1.getCount());
+		assertTrue(h1.isEstimated());
+		assertEquals(0, h1.getError());
+		assertEquals("2.0", h2.getVersion());
+		assertEquals(5, h2.getCount());
+		assertFalse(h2.isEstimated());
+		assertEquals(4, h2.getError());
+		assertEquals("file:/a", h2.getLocation());
+		leader.close();
+		other.close();
+	}
+
+	// -- Helper methods --
+
+	private static Map<String, UsageStats> byId(final List<UsageStats> stats) {
+		final Map<String, UsageStats> map = new HashMap<String, UsageStats>();
+		for (final UsageStats usage : stats) {
+			map.put(usage.getIdentifier(), usage);
+		}
+		return map;
+	}
+
+	private static UsageStats stats(final String id, final int count) {
+		final UsageStats usage = new UsageStats(id, "file:/" + id, null);
+		usage.add(count);
+		return usage;
+	}
+
+}
@@ -0,0 +1,294 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2016 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.usage;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.scijava.util.DigestUtils;
+
+/**
+ * Embedded HTTP server speaking the protocol of {@code server/stats.php}, for
+ * exercising uploads without the production usage server.
+ */
+public class StandInServer {
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final Store store;
+
+	/** IDs of the batches stored so far. */
+	private final Set<String> batchIds = ConcurrentHashMap.newKeySet();
+
+	/** Pacing directions sent to clients, or -1 for none. */
+	private volatile long nextUpload = -1, retryAfter = -1, maxBatch = -1;
+
+	/**
+	 * Starts a server on an ephemeral local port, handling requests with the
+	 * given number of threads.
+	 */
+	public StandInServer(final Store store, final int threads)
+		throws IOException
+	{
+		this.store = store;
+		final InetSocketAddress address =
+			new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+		server = HttpServer.create(address, 4096);
+		server.createContext("/stats.php", new StatsHandler());
+		executor = Executors.newFixedThreadPool(threads);
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/** Gets the URL to which statistics should be uploaded. */
+	public String getURL() {
+		final InetSocketAddress address = server.getAddress();
+		return "http://" + address.getHostString() + ":" + address.getPort() +
+			"/stats.php";
+	}
+
+	/** Gets the storage backend of this server. */
+	public Store getStore() {
+		return store;
+	}
+
+	/** Sets the seconds until clients should next upload, or -1 for none. */
+	public void setNextUpload(final long seconds) {
+		nextUpload = seconds;
+	}
+
+	/**
+	 * Sets the seconds after which clients should send deferred uploads again,
+	 * or -1 to stop deferring uploads.
+	 */
+	public void setRetryAfter(final long seconds) {
+		retryAfter = seconds;
+	}
+
+	/** Sets the most statistics accepted per batch, or -1 for no limit. */
+	public void setMaxBatch(final long stats) {
+		maxBatch = stats;
+	}
+
+	/** Stops the server, waiting for in-flight requests to complete. */
+	public void stop() {
+		server.stop(0);
+		executor.shutdown();
+		try {
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		}
+		catch (final InterruptedException exc) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// -- Helper classes --
+
+	/** Storage backend for uploaded statistics. */
+	public interface Store {
+
+		/**
+		 * Stores one upload event, or one batch of an event whose batches share
+		 * a {@code session} ID.
+		 */
+		void store(JSONObject json);
+	}
+
+	/** Storage backend keeping aggregated statistics in memory. */
+	public static class MemoryStore implements Store {
+
+		private final AtomicLong events = new AtomicLong();
+		private final AtomicLong batches = new AtomicLong();
+		private final Set<String> sessions = ConcurrentHashMap.newKeySet();
+		private final LongAdder total = new LongAdder();
+		private final Set<String> users = ConcurrentHashMap.newKeySet();
+		private final Map<String, LongAdder> counts =
+			new ConcurrentHashMap<String, LongAdder>();
+
+		@Override
+		public void store(final JSONObject json) {
+			batches.incrementAndGet();
+			final String session = json.optString("session", null);
+			if (session == null || sessions.add(session)) events.incrementAndGet();
+			users.add(json.optString("user", ""));
+			final JSONArray sites = json.getJSONArray("sites");
+			for (int s = 0; s < sites.length(); s++) {
+				final JSONArray stats = sites.getJSONObject(s).getJSONArray("stats");
+				for (int i = 0; i < stats.length(); i++) {
+					final JSONObject stat = stats.getJSONObject(i);
+					final long count = stat.getLong("count");
+					counter(stat.getString("id")).add(count);
+					total.add(count);
+				}
+			}
+		}
+
+		/** Gets the number of upload events stored. */
+		public long getEventCount() {
+			return events.get();
+		}
+
+		/** Gets the number of requests stored, counting each batch separately. */
+		public long getBatchCount() {
+			return batches.get();
+		}
+
+		/** Gets the number of distinct users who uploaded. */
+		public int getUserCount() {
+			return users.size();
+		}
+
+		/** Gets the sum of all counts stored. */
+		public long getTotalCount() {
+			return total.sum();
+		}
+
+		/** Gets the total count stored for the given identifier. */
+		public long getCount(final String id) {
+			final LongAdder count = counts.get(id);
+			return count == null ? 0 : count.sum();
+		}
+
+		private LongAdder counter(final String id) {
+			final LongAdder count = counts.get(id);
+			if (count != null) return count;
+			final LongAdder newCount = new LongAdder();
+			final LongAdder oldCount = counts.putIfAbsent(id, newCount);
+			return oldCount == null ? newCount : oldCount;
+		}
+	}
+
+	/** Handles uploads the same way as {@code stats.php}. */
+	private class StatsHandler implements HttpHandler {
+
+		@Override
+		public void handle(final HttpExchange exchange) throws IOException {
+			final String data = DigestUtils.string(read(exchange.getRequestBody()));
+			final JSONObject output = pacing();
+			if (output.has("retry_after")) {
+				output.put("message", "Statistics deferred");
+				respond(exchange, output);
+				return;
+			}
+			if (data.length() == 0) {
+				output.put("message", "No statistics to process");
+				respond(exchange, output);
+				return;
+			}
+			final JSONObject json;
+			try {
+				json = new JSONObject(data);
+			}
+			catch (final JSONException exc) {
+				respond(exchange, null);
+				return;
+			}
+
+			// NB: Like stats.php, silently ignore uploads before version 2.0.
+			final double version = json.optDouble("usage_version", 0);
+			if (version < 2.0) {
+				respond(exchange, null);
+				return;
+			}
+
+			// NB: Like stats.php, acknowledge duplicate batches without storing.
+			final String batchId = json.optString("batch_id", null);
+			if (batchId != null && !batchIds.add(batchId)) {
+				output.put("message", "Duplicate statistics ignored");
+				output.put("duplicate", true);
+				respond(exchange, output);
+				return;
+			}
+
+			// NB: Like stats.php, store each upload of a relayed payload separately.
+			final JSONArray uploads = json.optJSONArray("uploads");
+			if (uploads == null) store.store(json);
+			else for (int u = 0; u < uploads.length(); u++) {
+				store.store(uploads.getJSONObject(u));
+			}
+			output.put("message", "Statistics processed");
+			respond(exchange, output);
+		}
+
+		private JSONObject pacing() {
+			final JSONObject pacing = new JSONObject();
+			if (nextUpload >= 0) pacing.put("next_upload", nextUpload);
+			if (retryAfter >= 0) pacing.put("retry_after", retryAfter);
+			if (maxBatch >= 0) pacing.put("max_batch", maxBatch);
+			return pacing;
+		}
+
+		private byte[] read(final InputStream in) throws IOException {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final byte[] buf = new byte[8192];
+			while (true) {
+				final int r = in.read(buf);
+				if (r < 0) break;
+				out.write(buf, 0, r);
+			}
+			in.close();
+			return out.toByteArray();
+		}
+
+		private void respond(final HttpExchange exchange, final JSONObject output)
+			throws IOException
+		{
+			final byte[] body = output == null ? new byte[0] : //
+				DigestUtils.bytes(output.toString());
+			exchange.getResponseHeaders().set("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, body.length == 0 ? -1 : body.length);
+			final OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+		}
+	}
+
+}
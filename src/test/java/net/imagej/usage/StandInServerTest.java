@@ -0,0 +1,188 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2016 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.usage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.log.LogLevel;
+import org.scijava.log.StderrLogService;
+
+/**
+ * Tests {@link JSONUploader} against a {@link StandInServer}.
+ */
+public class StandInServerTest {
+
+	private StandInServer.MemoryStore store;
+	private StandInServer server;
+	private StderrLogService log;
+
+	@Before
+	public void setUp() throws Exception {
+		store = new StandInServer.MemoryStore();
+		server = new StandInServer(store, 2);
+		log = new StderrLogService();
+		log.setLevel(LogLevel.WARN);
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void testUpload() {
+		final List<UsageStats> stats = SyntheticUsage.stats(10, 3);
+		final JSONObject json = json(stats);
+		json.put(DefaultUsageUploadService.VERSION_KEY,
+			DefaultUsageUploadService.VERSION);
+		assertTrue(new JSONUploader(json, log).upload("someone", server.getURL()));
+
+		assertEquals(1, store.getEventCount());
+		assertEquals(1, store.getUserCount());
+		long total = 0;
+		for (final UsageStats usage : stats) {
+			assertEquals(usage.getCount(), store.getCount(usage.getIdentifier()));
+			total += usage.getCount();
+		}
+		assertEquals(total, store.getTotalCount());
+	}
+
+	@Test
+	public void testBatchedUpload() {
+		final List<UsageStats> stats = SyntheticUsage.stats(100, 3);
+		final JSONObject json = json(stats);
+		json.put(DefaultUsageUploadService.VERSION_KEY,
+			DefaultUsageUploadService.VERSION);
+		final JSONUploader uploader = new JSONUploader(json, log);
+		uploader.setBatchSize(7);
+		assertEquals(15, uploader.batches().size());
+		assertTrue(uploader.upload("someone", server.getURL()));
+
+		assertEquals(15, store.getBatchCount());
+		assertEquals(1, store.getEventCount());
+		for (final UsageStats usage : stats) {
+			assertEquals(usage.getCount(), store.getCount(usage.getIdentifier()));
+		}
+	}
+
+	@Test
+	public void testPacing() {
+		final List<UsageStats> stats = SyntheticUsage.stats(20, 3);
+		final JSONObject json = json(stats);
+		json.put(DefaultUsageUploadService.VERSION_KEY,
+			DefaultUsageUploadService.VERSION);
+
+		// the server defers the upload, keeping nothing
+		server.setRetryAfter(600);
+		server.setMaxBatch(8);
+		final JSONUploader uploader = new JSONUploader(json, log);
+		assertFalse(uploader.upload("someone", server.getURL()));
+		assertEquals(600, uploader.getRetryAfter());
+		assertEquals(8, uploader.getMaxBatch());
+		assertEquals(1, uploader.getDeferred().size());
+		assertEquals(0, store.getEventCount());
+
+		// the deferred batch is sent ahead of the next upload
+		server.setRetryAfter(-1);
+		server.setNextUpload(7200);
+		// NB: The server may not raise the batch size beyond the client's.
+		server.setMaxBatch(1000000);
+		final JSONUploader next = new JSONUploader(json(SyntheticUsage.stats(
+			0, 3)), log);
+		next.addDeferred(uploader.getDeferred());
+		assertTrue(next.upload("someone", server.getURL()));
+		assertEquals(7200, next.getNextUpload());
+		assertEquals(JSONUploader.DEFAULT_BATCH_SIZE, next.getBatchSize());
+		assertEquals(-1, next.getRetryAfter());
+		assertTrue(next.getDeferred().isEmpty());
+		assertEquals(1, store.getEventCount());
+		for (final UsageStats usage : stats) {
+			assertEquals(usage.getCount(), store.getCount(usage.getIdentifier()));
+		}
+	}
+
+	@Test
+	public void testDuplicateUpload() {
+		final List<UsageStats> stats = SyntheticUsage.stats(30, 3);
+		final JSONObject json = json(stats);
+		json.put(DefaultUsageUploadService.VERSION_KEY,
+			DefaultUsageUploadService.VERSION);
+		final JSONUploader splitter = new JSONUploader(json, log);
+		splitter.setBatchSize(10);
+		final List<JSONObject> batches = splitter.batches();
+		assertEquals(3, batches.size());
+
+		// sending the same batches twice stores them only once
+		for (int i = 0; i < 2; i++) {
+			final JSONUploader uploader =
+				new JSONUploader(json(SyntheticUsage.stats(0, 3)), log);
+			uploader.addDeferred(batches);
+			assertTrue(uploader.upload("someone", server.getURL()));
+		}
+		assertEquals(3, store.getBatchCount());
+		assertEquals(1, store.getEventCount());
+		for (final UsageStats usage : stats) {
+			assertEquals(usage.getCount(), store.getCount(usage.getIdentifier()));
+		}
+	}
+
+	@Test
+	public void testUnversionedUpload() {
+		final JSONObject json = json(SyntheticUsage.stats(10, 3));
+		final JSONUploader uploader = new JSONUploader(json, log);
+		uploader.setBatchSize(4);
+		assertFalse(uploader.upload("someone", server.getURL()));
+		assertEquals(0, store.getEventCount());
+		// NB: Batches whose response was not understood are kept, not lost.
+		assertEquals(3, uploader.getDeferred().size());
+	}
+
+	// -- Helper methods --
+
+	private JSONObject json(final List<UsageStats> stats) {
+		final JSONBuilder builder =
+			new JSONBuilder(new SyntheticUsage.SitesUpdateService(3), null);
+		for (final UsageStats usage : stats) {
+			builder.append(usage);
+		}
+		return builder.getJSON();
+	}
+
+}
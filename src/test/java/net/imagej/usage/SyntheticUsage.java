@@ -0,0 +1,132 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2016 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.usage;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.imagej.updater.UpdateService;
+import net.imagej.updater.UpdateSite;
+
+import org.scijava.Identifiable;
+import org.scijava.Locatable;
+import org.scijava.service.AbstractService;
+
+/**
+ * Synthetic usage statistics spread across a fixed number of official update
+ * sites, for benchmarking and load testing.
+ */
+public final class SyntheticUsage {
+
+	private SyntheticUsage() {
+		// NB: Prevent instantiation of utility class.
+	}
+
+	/**
+	 * Creates the given number of usage statistics, assigned round-robin to the
+	 * specified number of update sites.
+	 */
+	public static List<UsageStats> stats(final int count, final int siteCount) {
+		final List<UsageStats> stats = new ArrayList<UsageStats>(count);
+		for (int i = 0; i < count; i++) {
+			final UsageStats usage = new UsageStats(thing(i, i % siteCount));
+			final long uses = 1 + i % 17;
+			for (int u = 0; u < uses; u++) {
+				usage.increment();
+			}
+			stats.add(usage);
+		}
+		return stats;
+	}
+
+	/** Creates an identifiable object on the given update site. */
+	public static Thing thing(final int index, final int site) {
+		return new Thing("command:org.example.site" + site + ".Plugin" + index,
+			"file:/sites/" + site + "/plugin" + index + ".jar");
+	}
+
+	// -- Helper classes --
+
+	/** An object with an identifier and a location. */
+	public static class Thing implements Identifiable, Locatable {
+
+		private final String id;
+		private final String location;
+
+		public Thing(final String id, final String location) {
+			this.id = id;
+			this.location = location;
+		}
+
+		@Override
+		public String getIdentifier() {
+			return id;
+		}
+
+		@Override
+		public String getLocation() {
+			return location;
+		}
+	}
+
+	/**
+	 * Update service resolving each {@code /sites/N/...} file to the Nth of a
+	 * fixed number of official update sites.
+	 */
+	public static class SitesUpdateService extends AbstractService implements
+		UpdateService
+	{
+
+		private final UpdateSite[] sites;
+
+		public SitesUpdateService(final int siteCount) {
+			sites = new UpdateSite[siteCount];
+			for (int s = 0; s < siteCount; s++) {
+				sites[s] = new UpdateSite("Site" + s, "http://sites.example.org/" + s +
+					"/", null, null, null, null, 0);
+				sites[s].setOfficial(true);
+			}
+		}
+
+		@Override
+		public UpdateSite getUpdateSite(final File file) {
+			final String site = file.getParentFile().getName();
+			return sites[Integer.parseInt(site)];
+		}
+
+		@Override
+		public UpdateSite getUpdateSite(final String name) {
+			throw new IllegalStateException();
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2016 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.usage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import net.imagej.updater.UpdateSite;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link UpdateSiteCache}.
+ */
+public class UpdateSiteCacheTest {
+
+	@Test
+	public void testTrackable() {
+		final CountingUpdateService updateService = new CountingUpdateService();
+		final UpdateSiteCache cache = new UpdateSiteCache(updateService);
+
+		assertTrue(cache.isTrackable("file:/sites/0/a.jar"));
+		assertFalse(cache.isTrackable("file:/sites/1/b.jar"));
+		assertFalse(cache.isTrackable("file:/local/c.jar"));
+		assertFalse(cache.isTrackable("not a URL"));
+		assertFalse(cache.isTrackable(null));
+		assertEquals(3, updateService.lookups);
+
+		// verdicts are cached
+		assertTrue(cache.isTrackable("file:/sites/0/a.jar"));
+		assertFalse(cache.isTrackable("file:/local/c.jar"));
+		assertEquals(3, updateService.lookups);
+
+		// until cleared
+		cache.clear();
+		assertTrue(cache.isTrackable("file:/sites/0/a.jar"));
+		assertEquals(4, updateService.lookups);
+	}
+
+	// -- Helper classes --
+
+	/** Update service with one official site, one unofficial site. */
+	private static class CountingUpdateService extends
+		SyntheticUsage.SitesUpdateService
+	{
+
+		private int lookups;
+
+		public CountingUpdateService() {
+			super(2);
+			super.getUpdateSite(new File("/sites/1/x.jar")).setOfficial(false);
+		}
+
+		@Override
+		public UpdateSite getUpdateSite(final File file) {
+			lookups++;
+			if (file.getPath().contains("local")) return null;
+			return super.getUpdateSite(file);
+		}
+	}
+}
@@ -0,0 +1,195 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2016 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.usage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * Tests {@link UsageAggregator}.
+ */
+public class UsageAggregatorTest {
+
+	@Test
+	public void testAggregation() {
+		final UsageAggregator aggregator = new UsageAggregator();
+		final TestMember first = new TestMember();
+		final TestMember second = new TestMember();
+		final TestMember third = new TestMember();
+		aggregator.join(first);
+		aggregator.join(second);
+		aggregator.join(third);
+		assertEquals(3, aggregator.size());
+
+		first.use("a", 1);
+		second.use("a", 2);
+		second.use("b", 3);
+		third.collected = false;
+		third.use("c", 4);
+
+		// the first member uploads everyone's merged statistics
+		assertEquals(12345, aggregator.upload());
+		assertEquals(1, first.uploads.size());
+		assertTrue(second.uploads.isEmpty());
+		final Map<String, UsageStats> uploaded = first.uploads.get(0);
+		assertEquals(2, uploaded.size());
+		assertEquals(3, uploaded.get("a").getCount());
+		assertEquals(3, uploaded.get("b").getCount());
+
+		// but not the statistics of members which do not collect them
+		assertNull(uploaded.get("c"));
+
+		// a leaving member hands over its statistics and deferred batches
+		first.use("a", 5);
+		first.deferred.add(new JSONObject());
+		aggregator.leave(first);
+		assertEquals(2, aggregator.size());
+		assertEquals(1, second.deferred.size());
+		second.use("a", 1);
+		aggregator.upload();
+		assertEquals(1, second.uploads.size());
+		assertEquals(6, second.uploads.get(0).get("a").getCount());
+
+		// the last member to leave uploads what remains
+		aggregator.leave(third);
+		second.use("b", 7);
+		aggregator.leave(second);
+		assertEquals(0, aggregator.size());
+		assertEquals(2, second.uploads.size());
+		assertEquals(7, second.uploads.get(1).get("b").getCount());
+	}
+
+	@Test(timeout = 10000)
+	public void testJoinDuringUpload() throws InterruptedException {
+		final UsageAggregator aggregator = new UsageAggregator();
+		final CountDownLatch uploading = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final TestMember slow = new TestMember() {
+
+			@Override
+			long upload(final Map<String, UsageStats> uploaded) {
+				uploading.countDown();
+				try {
+					release.await();
+				}
+				catch (final InterruptedException exc) {
+					Thread.currentThread().interrupt();
+				}
+				return super.upload(uploaded);
+			}
+		};
+		aggregator.join(slow);
+		slow.use("a", 1);
+		final Thread upload = new Thread() {
+
+			@Override
+			public void run() {
+				aggregator.upload();
+			}
+		};
+		upload.start();
+		uploading.await();
+
+		// contexts come and go while the upload is in flight
+		final TestMember other = new TestMember();
+		aggregator.join(other);
+		other.use("b", 2);
+		aggregator.leave(other);
+		assertEquals(1, aggregator.size());
+
+		release.countDown();
+		upload.join();
+		assertEquals(1, slow.uploads.size());
+		assertEquals(1, slow.uploads.get(0).get("a").getCount());
+		aggregator.leave(slow);
+		assertEquals(2, slow.uploads.size());
+		assertEquals(2, slow.uploads.get(1).get("b").getCount());
+	}
+
+	// -- Helper classes --
+
+	private static class TestMember extends UsageAggregator.Member {
+
+		private boolean collected = true;
+		private Map<String, UsageStats> stats = new HashMap<String, UsageStats>();
+		private final List<Map<String, UsageStats>> uploads =
+			new ArrayList<Map<String, UsageStats>>();
+		private final List<JSONObject> deferred = new ArrayList<JSONObject>();
+
+		public void use(final String id, final long count) {
+			final UsageStats usage = new UsageStats(id, "file:/" + id, null);
+			usage.add(count);
+			stats.put(id, usage);
+		}
+
+		@Override
+		boolean isCollected() {
+			return collected;
+		}
+
+		@Override
+		Map<String, UsageStats> snapshot() {
+			final Map<String, UsageStats> snapshot = stats;
+			stats = new HashMap<String, UsageStats>();
+			return snapshot;
+		}
+
+		@Override
+		long upload(final Map<String, UsageStats> uploaded) {
+			uploads.add(uploaded);
+			return 12345;
+		}
+
+		@Override
+		List<JSONObject> takeDeferred() {
+			final List<JSONObject> batches = new ArrayList<JSONObject>(deferred);
+			deferred.clear();
+			return batches;
+		}
+
+		@Override
+		void adoptDeferred(final List<JSONObject> batches) {
+			deferred.addAll(batches);
+		}
+	}
+
+}
@@ -0,0 +1,162 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2016 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.usage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link UsageExporter}.
+ */
+public class UsageExporterTest {
+
+	/** Midday of 2016-03-01, UTC. */
+	private static final long TIME = 1456833600000L;
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("imagej-usage-", ".export");
+		assertTrue(dir.delete());
+	}
+
+	@After
+	public void tearDown() {
+		final File[] files = dir.listFiles();
+		if (files != null) for (final File file : files) file.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void testExport() throws IOException {
+		final UsageExporter exporter = new UsageExporter(dir);
+		assertTrue(dir.isDirectory());
+
+		// the upload's batches are exported as they would have been sent
+		final JSONUploader uploader = new JSONUploader(json(5), null);
+		uploader.setBatchSize(2);
+		final File file = exporter.export(uploader.prepare("someone"), TIME);
+		assertEquals("usage-2016-03-01-120000-000.ndjson.gz", file.getName());
+		assertEquals(3, read(file).size());
+
+		// each export is written to a file of its own
+		final JSONUploader later = new JSONUploader(json(1), null);
+		final File laterFile = exporter.export(later.prepare("someone"), TIME +
+			60000);
+		assertEquals("usage-2016-03-01-120100-000.ndjson.gz", laterFile
+			.getName());
+		assertNull(exporter.export(Collections.<JSONObject> emptyList(), TIME));
+
+		final List<JSONObject> lines = read(file);
+		lines.addAll(read(laterFile));
+		assertEquals(4, lines.size());
+		final Set<String> batchIDs = new HashSet<String>();
+		int stats = 0;
+		for (final JSONObject line : lines) {
+			assertEquals("someone", line.getString("user"));
+			assertEquals("2.0", line.getString("usage_version"));
+			assertTrue(line.has("content_hash"));
+			batchIDs.add(line.getString("batch_id"));
+			stats += line.getJSONArray("sites").getJSONObject(0)
+				.getJSONArray("stats").length();
+		}
+		assertEquals(4, batchIDs.size());
+		assertEquals(6, stats);
+		assertEquals(TIME / 1000, lines.get(0).getLong("exported"));
+		assertEquals(TIME / 1000 + 60, lines.get(3).getLong("exported"));
+
+		// exports of the same time are numbered; none is left half written
+		final File same =
+			exporter.export(new JSONUploader(json(1), null).prepare("x"), TIME);
+		assertEquals("usage-2016-03-01-120000-000-1.ndjson.gz", same.getName());
+		assertEquals(1, read(same).size());
+		assertEquals(3, read(file).size());
+		assertEquals(3, dir.list().length);
+	}
+
+	// -- Helper methods --
+
+	/** Creates an upload of a single site with the given number of stats. */
+	private static JSONObject json(final int count) {
+		final JSONObject site = new JSONObject();
+		site.put("name", "ImageJ");
+		site.put("url", "http://update.imagej.net/");
+		for (int i = 0; i < count; i++) {
+			final JSONObject stat = new JSONObject();
+			stat.put("id", "command:Stat" + i);
+			stat.put("count", i + 1);
+			site.append("stats", stat);
+		}
+		final JSONObject json = new JSONObject();
+		json.append("sites", site);
+		json.put(DefaultUsageUploadService.VERSION_KEY,
+			DefaultUsageUploadService.VERSION);
+		return json;
+	}
+
+	/** Reads the lines of an export file. */
+	private static List<JSONObject> read(final File file) throws IOException {
+		final List<JSONObject> lines = new ArrayList<JSONObject>();
+		final BufferedReader in = new BufferedReader(new InputStreamReader(
+			new GZIPInputStream(new FileInputStream(file)), "UTF-8"));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				lines.add(new JSONObject(line));
+			}
+		}
+		finally {
+			in.close();
+		}
+		return lines;
+	}
+
+}
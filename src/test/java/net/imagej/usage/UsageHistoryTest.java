@@ -0,0 +1,139 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2016 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.usage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link UsageHistory}.
+ */
+public class UsageHistoryTest {
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("imagej-usage-", ".history");
+		assertTrue(dir.delete());
+	}
+
+	@After
+	public void tearDown() {
+		final File[] files = dir.listFiles();
+		if (files != null) for (final File file : files) file.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void testQueries() throws IOException {
+		final UsageHistory history = new UsageHistory(dir);
+		history.append(100, Arrays.asList(stats("a", 5), stats("b", 2)));
+		history.append(100, Arrays.asList(stats("a", 1), stats("c", 0)));
+		history.append(102, Arrays.asList(stats("b", 7), stats("c", 3)));
+		assertEquals(5, history.size());
+
+		final Map<String, Long> all = history.totals(0, 1000);
+		assertEquals(3, all.size());
+		final Iterator<Map.Entry<String, Long>> iter = all.entrySet().iterator();
+		assertEquals("b", iter.next().getKey());
+		assertEquals("a", iter.next().getKey());
+		assertEquals(6, all.get("a").longValue());
+		assertEquals(9, all.get("b").longValue());
+		assertEquals(3, all.get("c").longValue());
+
+		final Map<String, Long> day100 = history.totals(100, 100);
+		assertEquals(2, day100.size());
+		assertEquals(2, day100.get("b").longValue());
+		assertTrue(history.totals(101, 101).isEmpty());
+
+		assertArrayEquals(new long[] { 2, 0, 7, 0 }, history.daily("b", 100, 103));
+		assertArrayEquals(new long[] { 0, 0 }, history.daily("z", 100, 101));
+
+		// records stay in day order, even if the clock goes backwards
+		history.append(50, Arrays.asList(stats("a", 1)));
+		assertArrayEquals(new long[] { 1 }, history.daily("a", 102, 102));
+	}
+
+	@Test
+	public void testReopen() throws IOException {
+		UsageHistory history = new UsageHistory(dir);
+		history.append(7, Arrays.asList(stats("a", 1), stats("b", 2)));
+
+		// a torn append leaves uneven columns and a partial dictionary entry
+		history.append(8, Arrays.asList(stats("c", 3)));
+		truncate("counts.col", 8 * 2 + 4);
+		truncate("dictionary.txt", new File(dir, "dictionary.txt").length() - 1);
+
+		history = new UsageHistory(dir);
+		assertEquals(2, history.size());
+		assertEquals(2, history.totals(0, 100).size());
+		history.append(9, Arrays.asList(stats("d", 4), stats("a", 1)));
+		assertEquals(4, history.size());
+		assertArrayEquals(new long[] { 1, 0, 1 }, history.daily("a", 7, 9));
+		assertEquals(4, history.totals(9, 9).get("d").longValue());
+	}
+
+	// -- Helper methods --
+
+	private static UsageStats stats(final String id, final int count) {
+		final UsageStats usage = new UsageStats(id, "file:/" + id, null);
+		usage.increment(count);
+		return usage;
+	}
+
+	private void truncate(final String name, final long length)
+		throws IOException
+	{
+		final RandomAccessFile raf = new RandomAccessFile(new File(dir, name),
+			"rw");
+		try {
+			raf.setLength(length);
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+}
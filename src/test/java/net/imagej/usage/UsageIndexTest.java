@@ -0,0 +1,126 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2016 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.usage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link UsageIndex}.
+ */
+public class UsageIndexTest {
+
+	@Test
+	public void testTop() {
+		final ConcurrentHashMap<String, UsageStats> table =
+			new ConcurrentHashMap<String, UsageStats>();
+		final UsageIndex index = new UsageIndex(new UpdateSiteCache(
+			new SyntheticUsage.SitesUpdateService(3)));
+		for (final UsageStats usage : SyntheticUsage.stats(300, 3)) {
+			table.put(usage.getIdentifier(), usage);
+			index.touch(usage);
+		}
+
+		// counts cycle from 1 to 17; ties are broken by identifier
+		List<UsageStats> top = index.top(table, 5);
+		assertEquals(5, top.size());
+		for (final UsageStats usage : top) {
+			assertEquals(17, usage.getCount());
+		}
+		assertEquals(id(135), top.get(0).getIdentifier());
+
+		// increments re-rank the entry
+		final UsageStats last = table.get(id(0));
+		for (int i = 0; i < 20; i++) {
+			last.increment();
+			index.touch(last);
+		}
+		top = index.top(table, 1);
+		assertEquals(id(0), top.get(0).getIdentifier());
+
+		// per update site
+		top = index.top(table, "Site1", 200);
+		assertEquals(100, top.size());
+		for (int i = 0; i < top.size(); i++) {
+			assertTrue(top.get(i).getLocation().startsWith("file:/sites/1/"));
+			if (i > 0) {
+				assertTrue(top.get(i - 1).getCount() >= top.get(i).getCount());
+			}
+		}
+		assertTrue(index.top(table, "Nonexistent", 5).isEmpty());
+
+		// entries removed from the table drop out
+		table.remove(id(0));
+		top = index.top(table, 1);
+		assertEquals(17, top.get(0).getCount());
+		assertEquals(299, index.top(table, 1000).size());
+
+		index.clear();
+		assertTrue(index.top(table, 5).isEmpty());
+	}
+
+	@Test
+	public void testPrefix() {
+		final ConcurrentHashMap<String, UsageStats> table =
+			new ConcurrentHashMap<String, UsageStats>();
+		final UsageIndex index = new UsageIndex(null);
+		for (final UsageStats usage : SyntheticUsage.stats(30, 3)) {
+			table.put(usage.getIdentifier(), usage);
+			index.touch(usage);
+		}
+
+		final List<UsageStats> site2 =
+			index.withPrefix(table, "command:org.example.site2.");
+		assertEquals(10, site2.size());
+		for (int i = 1; i < site2.size(); i++) {
+			assertTrue(site2.get(i - 1).getIdentifier().compareTo(site2.get(i)
+				.getIdentifier()) < 0);
+		}
+		assertEquals(1, index.withPrefix(table, id(29)).size());
+		assertTrue(index.withPrefix(table, "op:").isEmpty());
+
+		// without update sites, there are no per-site rankings
+		assertTrue(index.top(table, "Site0", 5).isEmpty());
+	}
+
+	// -- Helper methods --
+
+	private static String id(final int index) {
+		return SyntheticUsage.thing(index, index % 3).getIdentifier();
+	}
+
+}
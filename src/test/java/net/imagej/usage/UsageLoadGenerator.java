@@ -0,0 +1,208 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2016 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.usage;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+import org.scijava.log.LogLevel;
+import org.scijava.log.StderrLogService;
+
+/**
+ * Simulates a fleet of clients uploading usage statistics to a
+ * {@link StandInServer}, reporting sustained ingest throughput and tail
+ * latency.
+ * <p>
+ * Usage: {@code UsageLoadGenerator [clients] [seconds] [statsPerUpload]}
+ * </p>
+ */
+public class UsageLoadGenerator {
+
+	/** Number of distinct plugins across all update sites. */
+	private static final int PLUGIN_COUNT = 20000;
+
+	/** Number of update sites across which plugins are spread. */
+	private static final int SITE_COUNT = 50;
+
+	private final String url;
+	private final int clients;
+	private final int statsPerUpload;
+	private final SyntheticUsage.SitesUpdateService updateService =
+		new SyntheticUsage.SitesUpdateService(SITE_COUNT);
+	private final StderrLogService log = new StderrLogService();
+
+	private final AtomicLong uploads = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+
+	public UsageLoadGenerator(final String url, final int clients,
+		final int statsPerUpload)
+	{
+		this.url = url;
+		this.clients = clients;
+		this.statsPerUpload = statsPerUpload;
+		log.setLevel(LogLevel.WARN);
+	}
+
+	/** Runs all clients for the given duration, then prints a report. */
+	public void run(final long seconds) throws InterruptedException {
+		final long deadline = System.nanoTime() + seconds * 1000000000L;
+		final CountDownLatch done = new CountDownLatch(clients);
+		final long[][] latencies = new long[clients][];
+		final long start = System.nanoTime();
+		for (int c = 0; c < clients; c++) {
+			final int client = c;
+			final Thread t = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						latencies[client] = runClient(client, deadline);
+					}
+					finally {
+						done.countDown();
+					}
+				}
+			}, "usage-client-" + c);
+			t.setDaemon(true);
+			t.start();
+		}
+		done.await();
+		final double elapsed = (System.nanoTime() - start) / 1e9;
+		report(latencies, elapsed);
+	}
+
+	// -- Helper methods --
+
+	/** Uploads repeatedly until the deadline, returning upload latencies. */
+	private long[] runClient(final int client, final long deadline) {
+		final String user = "client" + client;
+		long[] latencies = new long[64];
+		int n = 0;
+		while (System.nanoTime() < deadline) {
+			final JSONObject json = payload();
+			final JSONUploader uploader = new JSONUploader(json, log);
+			final long t0 = System.nanoTime();
+			final boolean success = uploader.upload(user, url);
+			final long t1 = System.nanoTime();
+			if (!success) {
+				failures.incrementAndGet();
+				continue;
+			}
+			uploads.incrementAndGet();
+			bytes.addAndGet(uploader.getPayloadSize());
+			if (n == latencies.length) latencies = Arrays.copyOf(latencies, 2 * n);
+			latencies[n++] = t1 - t0;
+		}
+		return Arrays.copyOf(latencies, n);
+	}
+
+	/** Builds a payload of randomly chosen plugins and counts. */
+	private JSONObject payload() {
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+		final JSONBuilder builder = new JSONBuilder(updateService, null);
+		for (int i = 0; i < statsPerUpload; i++) {
+			final int plugin = random.nextInt(PLUGIN_COUNT);
+			final UsageStats usage =
+				new UsageStats(SyntheticUsage.thing(plugin, plugin % SITE_COUNT));
+			final int count = 1 + random.nextInt(20);
+			for (int c = 0; c < count; c++) {
+				usage.increment();
+			}
+			builder.append(usage);
+		}
+		final JSONObject json = builder.getJSON();
+		json.put(DefaultUsageUploadService.VERSION_KEY,
+			DefaultUsageUploadService.VERSION);
+		return json;
+	}
+
+	private void report(final long[][] latencies, final double elapsed) {
+		int total = 0;
+		for (final long[] l : latencies) total += l.length;
+		final long[] all = new long[total];
+		int offset = 0;
+		for (final long[] l : latencies) {
+			System.arraycopy(l, 0, all, offset, l.length);
+			offset += l.length;
+		}
+		Arrays.sort(all);
+
+		System.out.println("clients:      " + clients);
+		System.out.println("elapsed:      " + String.format("%.1f s", elapsed));
+		System.out.println("uploads:      " + uploads.get() + " (" +
+			String.format("%.1f/s", uploads.get() / elapsed) + ")");
+		System.out.println("failures:     " + failures.get());
+		System.out.println("throughput:   " +
+			String.format("%.2f MB/s", bytes.get() / elapsed / 1e6));
+		System.out.println("latency p50:  " + millis(all, 0.50));
+		System.out.println("latency p99:  " + millis(all, 0.99));
+		System.out.println("latency p999: " + millis(all, 0.999));
+		System.out.println("latency max:  " + millis(all, 1.0));
+	}
+
+	private String millis(final long[] sorted, final double quantile) {
+		if (sorted.length == 0) return "n/a";
+		final int index = (int) Math.ceil(quantile * sorted.length) - 1;
+		final long nanos = sorted[Math.max(index, 0)];
+		return String.format("%.2f ms", nanos / 1e6);
+	}
+
+	// -- Main method --
+
+	public static void main(final String... args) throws IOException,
+		InterruptedException
+	{
+		final int clients = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		final long seconds = args.length > 1 ? Long.parseLong(args[1]) : 60;
+		final int statsPerUpload = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+
+		final StandInServer.MemoryStore store = new StandInServer.MemoryStore();
+		final StandInServer server = new StandInServer(store,
+			Runtime.getRuntime().availableProcessors() * 2);
+		try {
+			new UsageLoadGenerator(server.getURL(), clients, statsPerUpload)
+				.run(seconds);
+		}
+		finally {
+			server.stop();
+		}
+		System.out.println("stored events: " + store.getEventCount());
+		System.out.println("stored users:  " + store.getUserCount());
+		System.out.println("stored total:  " + store.getTotalCount());
+	}
+
+}
@@ -0,0 +1,170 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2016 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.usage;
+
+import java.util.concurrent.TimeUnit;
+
+import net.imagej.usage.SyntheticUsage.Thing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.scijava.Context;
+
+/**
+ * Benchmarks {@link DefaultUsageService#increment} throughput and
+ * {@link DefaultUsageService#getUsage} latency.
+ * <p>
+ * Run via {@link #main}, which also reports allocation rates.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class UsageServiceBenchmark {
+
+	/** Number of distinct identifiers which are incremented repeatedly. */
+	private static final int HOT_COUNT = 1000;
+
+	/** Number of distinct identifiers looked up for the first time. */
+	private static final int COLD_COUNT = 100000;
+
+	private Context context;
+	private UsageService usageService;
+	private Thing[] hot;
+	private Thing[] cold;
+	private int coldIndex;
+
+	@Setup
+	public void setUp() {
+		context = new Context(UsageService.class);
+		usageService = context.getService(UsageService.class);
+		// NB: Test objects are not from any update site.
+		((DefaultUsageService) usageService).setUnreportableSkipped(false);
+		hot = new Thing[HOT_COUNT];
+		for (int i = 0; i < hot.length; i++) {
+			hot[i] = SyntheticUsage.thing(i, 0);
+			// NB: Populate the table up front, so that only counts change.
+			usageService.increment(hot[i]);
+		}
+		cold = new Thing[COLD_COUNT];
+		for (int i = 0; i < cold.length; i++) {
+			cold[i] = SyntheticUsage.thing(HOT_COUNT + i, 1);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		context.dispose();
+	}
+
+	/** Per-thread cursor over the hot identifiers. */
+	@State(Scope.Thread)
+	public static class Cursor {
+
+		private int index;
+
+		public Thing next(final Thing[] things) {
+			if (++index == things.length) index = 0;
+			return things[index];
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	@Threads(1)
+	public void increment1(final Cursor cursor) {
+		usageService.increment(cursor.next(hot));
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	@Threads(4)
+	public void increment4(final Cursor cursor) {
+		usageService.increment(cursor.next(hot));
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	@Threads(32)
+	public void increment32(final Cursor cursor) {
+		usageService.increment(cursor.next(hot));
+	}
+
+	/** Looks up identifiers which are already in the table. */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public UsageStats getUsageHot(final Cursor cursor) {
+		return usageService.getUsage(cursor.next(hot));
+	}
+
+	/** Looks up identifiers which are not yet in the table. */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public UsageStats getUsageCold() {
+		if (coldIndex == cold.length) {
+			// NB: Every identifier has been seen; start over with an empty table.
+			usageService.clearStats();
+			coldIndex = 0;
+		}
+		return usageService.getUsage(cold[coldIndex++]);
+	}
+
+	public static void main(final String... args) throws RunnerException {
+		final Options options = new OptionsBuilder() //
+			.include(UsageServiceBenchmark.class.getSimpleName()) //
+			.addProfiler(GCProfiler.class) //
+			.build();
+		new Runner(options).run();
+	}
+
+}
@@ -39,6 +39,7 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.util.List;
 import java.util.Map;
 
 import org.junit.After;
@@ -61,6 +62,8 @@ public class UsageServiceTest {
 	public void setUp() {
 		final Context context = new Context(UsageService.class);
 		usageService = context.getService(UsageService.class);
+		// NB: Test objects are not from any update site.
+		((DefaultUsageService) usageService).setUnreportableSkipped(false);
 	}
 
 	@After
@@ -124,6 +127,126 @@ public class UsageServiceTest {
 		assertEquals(1, newStats.get(foo.getIdentifier()).getCount());
 	}
 
+	/** Tests canonicalization of identifiers. */
+	@Test
+	public void testCanonicalization() {
+		usageService.increment(new Thing("legacy:a.B?/home/me/one.tif", "file:/a"));
+		usageService.increment(new Thing("legacy:a.B?C:\\two.tif", "file:/a"));
+		usageService.increment(new Thing("legacy:a.B?edge", "file:/a"));
+		final Map<String, UsageStats> stats = usageService.getStats();
+		assertEquals(2, stats.size());
+		assertEquals(2, stats.get("legacy:a.B").getCount());
+		assertEquals("legacy:a.B", stats.get("legacy:a.B").getIdentifier());
+		assertEquals(1, stats.get("legacy:a.B?edge").getCount());
+	}
+
+	/** Tests sampled recording of usage statistics. */
+	@Test
+	public void testSampling() {
+		final DefaultUsageService service = (DefaultUsageService) usageService;
+		service.setSamplingRate(10);
+		final Thing foo = new Thing("foo", "file:/foo");
+		final int events = 100000;
+		for (int i = 0; i < events; i++) {
+			usageService.increment(foo);
+		}
+		final UsageStats fooStats = usageService.getStats().get("foo");
+		assertTrue(fooStats.isEstimated());
+		assertEquals(0, fooStats.getCount() % 10);
+		// NB: The estimate is well within 5% with overwhelming probability.
+		assertEquals(events, fooStats.getCount(), events * 0.05);
+		assertEquals(fooStats.getCount(), usageService.getIncrementCount());
+	}
+
+	/** Tests usage statistics in a table of limited capacity. */
+	@Test
+	public void testCapacity() {
+		final DefaultUsageService service = (DefaultUsageService) usageService;
+		service.setCapacity(16);
+		final Thing heavy = new Thing("heavy", "file:/heavy");
+		for (int i = 0; i < 1000; i++) {
+			usageService.increment(heavy);
+			usageService.increment(new Thing("light" + i, "file:/light"));
+		}
+		final Map<String, UsageStats> stats = usageService.getStats();
+		assertTrue(stats.size() <= 16);
+		final UsageStats heavyStats = stats.get("heavy");
+		assertEquals(1000, heavyStats.getCount());
+		assertEquals(0, heavyStats.getError());
+
+		// counts of the long tail are bounded overestimates
+		for (final UsageStats usage : stats.values()) {
+			if (usage == heavyStats) continue;
+			assertTrue(usage.getCount() >= 1);
+			assertTrue(usage.getCount() - usage.getError() <= 1);
+		}
+	}
+
+	/** Tests spilling of cold statistics to disk. */
+	@Test
+	public void testMemoryBudget() {
+		final DefaultUsageService service = (DefaultUsageService) usageService;
+		service.setMemoryBudget(20000);
+		final Thing hot = new Thing("hot", "file:/hot");
+		for (int i = 0; i < 1000; i++) {
+			usageService.increment(hot);
+			usageService.increment(new Thing("cold" + i, "file:/cold"));
+			usageService.increment(new Thing("cold" + i % 10, "file:/cold"));
+		}
+
+		// the table stays within budget
+		long bytes = 0;
+		for (final UsageStats usage : usageService.getStats().values()) {
+			bytes += usage.estimateBytes();
+		}
+		assertTrue(bytes <= 20000);
+		assertTrue(usageService.getStats().size() < 1000);
+
+		// yet no usage is lost
+		final Map<String, UsageStats> snapshot = usageService.snapshotStats();
+		assertEquals(1001, snapshot.size());
+		assertEquals(1000, snapshot.get("hot").getCount());
+		assertEquals("file:/hot", snapshot.get("hot").getLocation());
+		for (int i = 0; i < 1000; i++) {
+			final long expected = i < 10 ? 101 : 1;
+			assertEquals(expected, snapshot.get("cold" + i).getCount());
+		}
+		assertTrue(usageService.getStats().isEmpty());
+		assertTrue(usageService.snapshotStats().isEmpty());
+	}
+
+	/** Tests {@link UsageService#getMostUsed(int)} and friends. */
+	@Test
+	public void testQueries() {
+		for (int i = 0; i < 10; i++) {
+			final Thing thing = new Thing("command:Thing" + i, "file:/thing");
+			for (int u = 0; u <= i; u++) {
+				usageService.increment(thing);
+			}
+		}
+		List<UsageStats> top = usageService.getMostUsed(3);
+		assertEquals(3, top.size());
+		assertEquals("command:Thing9", top.get(0).getIdentifier());
+		assertEquals("command:Thing7", top.get(2).getIdentifier());
+
+		// the index follows subsequent usage
+		final Thing thing = new Thing("command:Thing0", "file:/thing");
+		for (int u = 0; u < 10; u++) {
+			usageService.increment(thing);
+		}
+		top = usageService.getMostUsed(1);
+		assertEquals("command:Thing0", top.get(0).getIdentifier());
+		assertEquals(11, top.get(0).getCount());
+
+		usageService.increment(new Thing("op:Other", "file:/thing"));
+		assertEquals(10, usageService.getUsageByPrefix("command:").size());
+		assertEquals(1, usageService.getUsageByPrefix("op:").size());
+
+		usageService.clearStats();
+		assertTrue(usageService.getMostUsed(3).isEmpty());
+		assertTrue(usageService.getUsageByPrefix("").isEmpty());
+	}
+
 	// -- Helper classes --
 
 	private static class Thing implements Identifiable, Locatable {
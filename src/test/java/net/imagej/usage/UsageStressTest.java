@@ -0,0 +1,322 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2016 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.usage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.imagej.updater.UpdateSite;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Context;
+import org.scijava.command.Command;
+import org.scijava.command.CommandInfo;
+import org.scijava.command.CommandService;
+import org.scijava.event.EventService;
+import org.scijava.log.LogLevel;
+import org.scijava.log.StderrLogService;
+import org.scijava.module.Module;
+import org.scijava.module.ModuleException;
+import org.scijava.module.event.ModuleExecutedEvent;
+
+/**
+ * Stress tests usage accounting: many threads publish module executions,
+ * while their statistics are snapshotted and uploaded to a
+ * {@link StandInServer} in parallel. Every execution must be uploaded
+ * exactly once, or at most once if the statistics are also being cleared.
+ * <p>
+ * The test runs for a couple of seconds by default. For a soak test, set the
+ * {@code imagej.usage.stressSeconds} system property to a longer duration,
+ * and the event throughput and heap usage are also logged.
+ * </p>
+ */
+public class UsageStressTest {
+
+	/** System property setting how many seconds the stress test runs. */
+	private static final String SECONDS_PROPERTY = "imagej.usage.stressSeconds";
+
+	/** Number of threads publishing module executions. */
+	private static final int THREADS = 8;
+
+	/** Commands whose executions are published. */
+	private static final Class<?>[] COMMANDS = { CommandA.class,
+		CommandB.class, CommandC.class, CommandD.class };
+
+	private Context context;
+	private DefaultUsageService usageService;
+	private EventService eventService;
+	private StandInServer.MemoryStore store;
+	private StandInServer server;
+	private StderrLogService log;
+	private List<Module> modules;
+
+	/** Resolves every file to one official update site. */
+	private final SyntheticUsage.SitesUpdateService updateService =
+		new SyntheticUsage.SitesUpdateService(1)
+		{
+
+			@Override
+			public UpdateSite getUpdateSite(final File file) {
+				return super.getUpdateSite(new File("/sites/0/plugin.jar"));
+			}
+		};
+
+	@Before
+	public void setUp() throws IOException, ModuleException {
+		context =
+			new Context(EventService.class, CommandService.class, UsageService.class);
+		usageService = (DefaultUsageService) context.getService(UsageService.class);
+		// NB: Test objects are not from any update site, and usage collection
+		// is disabled by default in the privacy options.
+		usageService.setUnreportableSkipped(false);
+		usageService.setCollecting(true);
+		eventService = context.getService(EventService.class);
+		store = new StandInServer.MemoryStore();
+		server = new StandInServer(store, 2);
+		log = new StderrLogService();
+		// NB: Report throughput only for soak tests, not in regular builds.
+		log.setLevel(System.getProperty(SECONDS_PROPERTY) == null ? //
+			LogLevel.WARN : LogLevel.INFO);
+		modules = new ArrayList<Module>();
+		for (final Class<?> c : COMMANDS) {
+			@SuppressWarnings("unchecked")
+			final Class<? extends Command> commandClass =
+				(Class<? extends Command>) c;
+			modules.add(new CommandInfo(commandClass).createModule());
+		}
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+		context.dispose();
+	}
+
+	/**
+	 * Tests that executions published concurrently with snapshots and uploads
+	 * are neither lost nor counted twice.
+	 */
+	@Test
+	public void testConcurrentUploads() throws Exception {
+		assertExact(stress(false));
+	}
+
+	/**
+	 * Tests that executions published concurrently with snapshots, uploads and
+	 * clears are not counted twice. Executions cleared away are not uploaded.
+	 */
+	@Test
+	public void testConcurrentClears() throws Exception {
+		final long[] published = stress(true);
+		long total = 0;
+		for (int m = 0; m < modules.size(); m++) {
+			final String id = modules.get(m).getInfo().getIdentifier();
+			final long uploaded = store.getCount(id);
+			assertTrue(id + ": " + uploaded, uploaded >= 0);
+			assertTrue(id + ": " + uploaded + " > " + published[m],
+				uploaded <= published[m]);
+			total += published[m];
+		}
+		assertTrue(store.getTotalCount() <= total);
+		assertTrue(usageService.getStats().isEmpty());
+	}
+
+	/**
+	 * Tests that executions are neither lost nor counted twice when the table
+	 * is bounded: its memory budget holds about two entries, so that entries
+	 * are spilled to disk all the time. NB: The capacity is just large enough
+	 * that no entry is evicted, as evicted counts are approximate.
+	 */
+	@Test
+	public void testBoundedUploads() throws Exception {
+		usageService.setMemoryBudget(2 * (new UsageStats(modules.get(0)
+			.getInfo(), "budget").estimateBytes() + UsageStats.HISTOGRAM_BYTES));
+		usageService.setCapacity(modules.size());
+		assertExact(stress(false));
+	}
+
+	// -- Helper methods --
+
+	/**
+	 * Publishes executions of the commands from many threads, while their
+	 * statistics are snapshotted and uploaded in parallel, then uploads what
+	 * remains.
+	 *
+	 * @param clearing Whether to also clear the statistics in parallel.
+	 * @return The number of executions published per command.
+	 */
+	private long[] stress(final boolean clearing) throws Exception {
+		final long seconds = Long.getLong(SECONDS_PROPERTY, 2);
+		final LongAdder[] published = new LongAdder[modules.size()];
+		for (int m = 0; m < published.length; m++) {
+			published[m] = new LongAdder();
+		}
+		final long deadline = System.currentTimeMillis() + 1000 * seconds;
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Thread> publishers = new ArrayList<Thread>();
+		for (int t = 0; t < THREADS; t++) {
+			final int offset = t;
+			final Thread publisher = new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						start.await();
+					}
+					catch (final InterruptedException exc) {
+						return;
+					}
+					int i = offset;
+					while (System.currentTimeMillis() < deadline) {
+						// NB: Publish in bursts, to check the clock less often.
+						for (int e = 0; e < 100; e++) {
+							final int m = i++ % modules.size();
+							eventService.publish(new ModuleExecutedEvent(modules.get(m)));
+							published[m].increment();
+						}
+					}
+				}
+			};
+			publisher.start();
+			publishers.add(publisher);
+		}
+		final Thread clearer = new Thread() {
+
+			@Override
+			public void run() {
+				try {
+					start.await();
+					while (System.currentTimeMillis() < deadline) {
+						usageService.clearStats();
+						Thread.sleep(3);
+					}
+				}
+				catch (final InterruptedException exc) {
+					// NB: Stop clearing.
+				}
+			}
+		};
+		if (clearing) clearer.start();
+
+		// snapshot and upload until the publishers are done, watching the heap
+		final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		long maxHeap = 0;
+		int uploads = 0;
+		final long startTime = System.nanoTime();
+		start.countDown();
+		while (alive(publishers)) {
+			if (upload(usageService.snapshotStats())) uploads++;
+			maxHeap = Math.max(maxHeap, memory.getHeapMemoryUsage().getUsed());
+			Thread.sleep(10);
+		}
+		final long elapsed = System.nanoTime() - startTime;
+		for (final Thread publisher : publishers) {
+			publisher.join();
+		}
+		if (clearing) clearer.join();
+		if (upload(usageService.snapshotStats())) uploads++;
+		System.gc();
+		final long finalHeap = memory.getHeapMemoryUsage().getUsed();
+
+		final long[] counts = new long[published.length];
+		long total = 0;
+		for (int m = 0; m < counts.length; m++) {
+			counts[m] = published[m].sum();
+			total += counts[m];
+		}
+		log.info(String.format(
+			"%d events in %d uploads: %.0f events/s; heap max %d MB, final %d MB",
+			total, uploads, total / (elapsed / 1e9), maxHeap >> 20, finalHeap >> 20));
+		return counts;
+	}
+
+	/** Asserts that exactly the given executions were uploaded. */
+	private void assertExact(final long[] published) {
+		long total = 0;
+		for (int m = 0; m < modules.size(); m++) {
+			final String id = modules.get(m).getInfo().getIdentifier();
+			assertEquals(id, published[m], store.getCount(id));
+			total += published[m];
+		}
+		assertEquals(total, store.getTotalCount());
+		assertTrue(usageService.getStats().isEmpty());
+	}
+
+	/** Uploads the given statistics, returning false if there were none. */
+	private boolean upload(final Map<String, UsageStats> snapshot) {
+		if (snapshot.isEmpty()) return false;
+		final JSONBuilder builder = new JSONBuilder(updateService, log);
+		builder.appendAll(snapshot.values());
+		final JSONObject json = builder.getJSON();
+		json.put(DefaultUsageUploadService.VERSION_KEY,
+			DefaultUsageUploadService.VERSION);
+		assertTrue(new JSONUploader(json, log).upload("stress", server.getURL()));
+		return true;
+	}
+
+	private static boolean alive(final List<Thread> threads) {
+		for (final Thread thread : threads) {
+			if (thread.isAlive()) return true;
+		}
+		return false;
+	}
+
+	// -- Helper classes --
+
+	public static class CommandA implements Command {
+
+		@Override
+		public void run() {
+			// NB: No action needed.
+		}
+	}
+
+	public static class CommandB extends CommandA {}
+
+	public static class CommandC extends CommandA {}
+
+	public static class CommandD extends CommandA {}
+
+}
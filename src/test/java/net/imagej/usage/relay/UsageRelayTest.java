@@ -0,0 +1,245 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2016 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.usage.relay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import net.imagej.usage.JSONUploader;
+import net.imagej.usage.StandInServer;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.log.LogLevel;
+import org.scijava.log.StderrLogService;
+
+/**
+ * Tests {@link UsageRelay}, forwarding to a {@link StandInServer}.
+ */
+public class UsageRelayTest {
+
+	private StderrLogService log;
+	private StandInServer.MemoryStore store;
+	private StandInServer server;
+	private File outbox;
+
+	@Before
+	public void setUp() throws IOException {
+		log = new StderrLogService();
+		log.setLevel(LogLevel.WARN);
+		store = new StandInServer.MemoryStore();
+		server = new StandInServer(store, 2);
+		outbox = File.createTempFile("imagej-usage-", ".outbox");
+		assertTrue(outbox.delete());
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+		final File[] files = outbox.listFiles();
+		if (files != null) for (final File file : files) file.delete();
+		outbox.delete();
+	}
+
+	@Test
+	public void testMerging() throws IOException {
+		final UsageRelay relay = relay();
+		try {
+			for (int user = 0; user < 3; user++) {
+				for (int upload = 0; upload < 2; upload++) {
+					final JSONObject json = upload(stat("a", 2), stat("b", user + 1));
+					assertTrue(new JSONUploader(json, log).upload("user" + user, relay
+						.getURL()));
+				}
+			}
+			assertEquals(6, relay.getWindowSize());
+
+			relay.flush();
+			assertEquals(0, relay.getWindowSize());
+			assertEquals(0, relay.getPendingCount());
+
+			// one event per user, with merged counts
+			assertEquals(3, store.getEventCount());
+			assertEquals(3, store.getUserCount());
+			assertEquals(12, store.getCount("a"));
+			assertEquals(12, store.getCount("b"));
+		}
+		finally {
+			relay.stop();
+		}
+	}
+
+	@Test
+	public void testOffline() throws IOException {
+		server.setRetryAfter(0);
+		UsageRelay relay = relay();
+		assertTrue(new JSONUploader(upload(stat("a", 5)), log).upload("user",
+			relay.getURL()));
+		relay.flush();
+		assertEquals(1, relay.getPendingCount());
+		assertEquals(0, store.getBatchCount());
+
+		// queued payloads survive a restart of the relay
+		relay.stop();
+		relay = relay();
+		try {
+			assertEquals(1, relay.getPendingCount());
+			server.setRetryAfter(-1);
+			relay.flush();
+			assertEquals(0, relay.getPendingCount());
+			assertEquals(5, store.getCount("a"));
+			assertEquals(1, store.getEventCount());
+		}
+		finally {
+			relay.stop();
+		}
+	}
+
+	@Test
+	public void testRestart() throws IOException {
+		// an upload acknowledged by a relay which then died is journaled
+		new RelayOutbox(outbox, log).receive(upload(stat("a", 5)));
+		UsageRelay relay = relay();
+		assertEquals(1, relay.getWindowSize());
+		final List<JSONObject> batches =
+			new JSONUploader(upload(stat("b", 3)), log).prepare("user");
+		assertTrue(resend(batches, relay));
+		relay.stop();
+		assertEquals(5, store.getCount("a"));
+		assertEquals(3, store.getCount("b"));
+
+		// retries of batches received before a restart are discarded
+		relay = relay();
+		try {
+			assertEquals(0, relay.getWindowSize());
+			assertTrue(resend(batches, relay));
+			assertEquals(0, relay.getWindowSize());
+			relay.flush();
+			assertEquals(3, store.getCount("b"));
+		}
+		finally {
+			relay.stop();
+		}
+	}
+
+	@Test
+	public void testQueueFailure() throws IOException {
+		final boolean[] failing = { true };
+		final RelayOutbox failingOutbox = new RelayOutbox(outbox, log) {
+
+			@Override
+			public void queue(final List<JSONObject> payloads,
+				final List<File> received) throws IOException
+			{
+				if (failing[0]) throw new IOException("Disk full");
+				super.queue(payloads, received);
+			}
+		};
+		log.setLevel(LogLevel.NONE);
+		UsageRelay relay = new UsageRelay(null, 0, server.getURL(), failingOutbox,
+			3600, log);
+		assertTrue(new JSONUploader(upload(stat("a", 5)), log).upload("user",
+			relay.getURL()));
+
+		// the window is kept, and stays journaled
+		relay.flush();
+		assertEquals(1, relay.getWindowSize());
+		assertEquals(0, relay.getPendingCount());
+		assertEquals(0, store.getBatchCount());
+		assertTrue(new JSONUploader(upload(stat("a", 2)), log).upload("user",
+			relay.getURL()));
+
+		// the next flush queues both uploads, once
+		failing[0] = false;
+		relay.flush();
+		assertEquals(0, relay.getWindowSize());
+		assertEquals(7, store.getCount("a"));
+		assertEquals(1, store.getEventCount());
+		relay.stop();
+
+		// nothing is left journaled to be replayed after a restart
+		relay = relay();
+		try {
+			assertEquals(0, relay.getWindowSize());
+			relay.flush();
+			assertEquals(7, store.getCount("a"));
+		}
+		finally {
+			relay.stop();
+		}
+	}
+
+	// -- Helper methods --
+
+	private UsageRelay relay() throws IOException {
+		return new UsageRelay(0, server.getURL(), outbox, 3600, log);
+	}
+
+	/** Sends the given batches again, as deferred ones. */
+	private boolean resend(final List<JSONObject> batches,
+		final UsageRelay relay)
+	{
+		final JSONUploader uploader = new JSONUploader(upload(), log);
+		uploader.addDeferred(batches);
+		return uploader.upload("user", relay.getURL());
+	}
+
+	private static JSONObject upload(final JSONObject... stats) {
+		final JSONObject site = new JSONObject();
+		site.put("name", "ImageJ");
+		site.put("url", "http://update.imagej.net/");
+		final JSONArray array = new JSONArray();
+		for (final JSONObject stat : stats) {
+			array.put(stat);
+		}
+		site.put("stats", array);
+		final JSONObject json = new JSONObject();
+		json.put("usage_version", "2.0");
+		json.append("sites", site);
+		return json;
+	}
+
+	private static JSONObject stat(final String id, final long count) {
+		final JSONObject stat = new JSONObject();
+		stat.put("id", id);
+		stat.put("count", count);
+		return stat;
+	}
+
+}